@@ -2,6 +2,7 @@
 package dev.m1younis;
 
 import dev.m1younis.controller.DatabaseController;
+import dev.m1younis.controller.MessageController;
 import dev.m1younis.view.MainView;
 import java.io.File;
 import java.io.IOException;
@@ -10,19 +11,31 @@ import java.io.IOException;
  * The project's entry point, responsible for launching the application.
  */
 public class App {
-    public static void main(String[] args) {
-        // Local database file is created and configured given it doesn't already exist
-        try {
-            if (new File(DatabaseController.DATABASE_PATH).createNewFile()) {
-                DatabaseController.init();
-                System.out.printf(
-                    "`%s` created and initialised\n",
-                    DatabaseController.DATABASE_PATH
-                );
+    static void initStorage() {
+        // Local database file is created and configured given it doesn't already exist, unless
+        // messages are kept in the log-structured store which never uses the database
+        if (MessageController.usesDatabase()) {
+            try {
+                if (new File(DatabaseController.DATABASE_PATH).createNewFile()) {
+                    DatabaseController.init();
+                    System.out.printf(
+                        "`%s` created and initialised\n",
+                        DatabaseController.DATABASE_PATH
+                    );
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            DatabaseController.migrate();
         }
+        // Either store is closed on exit, flushing pending writes
+        Runtime.getRuntime().addShutdownHook(new Thread(MessageController::shutdown));
+    }
+
+    public static void main(String[] args) {
+        initStorage();
+        MessageController.buildFilter();
+        MessageController.warmCache();
 
         new MainView();
     }
@@ -0,0 +1,213 @@
+
+package dev.m1younis;
+
+import dev.m1younis.controller.MessageController;
+import dev.m1younis.controller.MessageDecoder;
+import dev.m1younis.model.Message;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A command-line entry point for moving messages between nodes in bulk, exporting stored messages
+ * to (or importing them from) files holding message bodies in the format of `Message.toString`,
+ * one after the other.
+ *
+ * <p>
+ * Both directions stream messages rather than holding them in memory. Imported messages have their
+ * hashes verified across all processors before being stored through the batching message writer,
+ * with only a bounded number of batches in flight at any one time.
+ * </p>
+ */
+public class Archive {
+    private static final String USAGE =
+        "Usage: Archive export <file> [<since> [<until>]]\n"
+        + "       Archive import <file>\n\n"
+        + "`-` may be given in place of <file> for standard output or input, while <since> and\n"
+        + "<until> are the Unix Epoch times (in seconds) bounding the messages exported";
+
+    private static final int BUFFER_SIZE = 1 << 16,
+                              BATCH_SIZE = 1024;
+
+    private static void fail(String message) {
+        System.err.println(message);
+        System.exit(1);
+    }
+
+    private static long exportMessages(String path, long since, long until) throws IOException {
+        // Each message body is written line by line as it is read from the store, with the writer
+        // checked for errors periodically to stop early should the output become unavailable
+        final long[] exported = {0};
+        final PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+            path.equals("-") ? System.out : new FileOutputStream(path),
+            StandardCharsets.UTF_8
+        ), BUFFER_SIZE));
+        try {
+            MessageController.visitStoredMessages(since, until, message -> {
+                message.forEachLine(line -> writer.append(line).append('\n'));
+                return ++exported[0] % BATCH_SIZE != 0 || !writer.checkError();
+            });
+            if (writer.checkError())
+                throw new IOException(String.format("Unable to write to `%s`", path));
+        } finally {
+            writer.close();
+        }
+
+        return exported[0];
+    }
+
+    private static Message readMessage(
+        BufferedReader reader,
+        MessageDecoder decoder,
+        long[] lineNumber
+    ) throws IOException {
+        // Returns `null` once the end of the input is reached between messages - headers follow
+        // the same rules as messages loaded from peers, with contents read according to the
+        // `Contents` header alone so they may hold any text
+        decoder.reset();
+        boolean started = false;
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber[0]++;
+            if (!started && line.isEmpty())
+                continue;
+            started = true;
+
+            try {
+                if (decoder.accept(line))
+                    return decoder.getMessage();
+            } catch (RuntimeException e) {
+                throw new IOException(String.format("Malformed header on line %d", lineNumber[0]));
+            }
+        }
+
+        if (started) {
+            throw new IOException(decoder.hasContentsHeader() ?
+                "Input ends within message contents" : "Input ends before message contents");
+        }
+        return null;
+    }
+
+    private static long[] importMessages(String path) throws IOException, InterruptedException {
+        final int threads = Runtime.getRuntime().availableProcessors();
+        final ExecutorService verifiers = Executors.newFixedThreadPool(threads);
+        final Semaphore inFlight = new Semaphore(2 * threads);
+        final LongAdder imported = new LongAdder(),
+                         skipped = new LongAdder(),
+                        rejected = new LongAdder();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        final MessageDecoder decoder = new MessageDecoder(false);
+        final long[] lineNumber = {0};
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+            path.equals("-") ? System.in : new FileInputStream(path),
+            StandardCharsets.UTF_8
+        ), BUFFER_SIZE)) {
+            List<Message> batch = new ArrayList<>(BATCH_SIZE);
+            while (failure.get() == null) {
+                final Message message = readMessage(reader, decoder, lineNumber);
+                if (message != null)
+                    batch.add(message);
+                if (batch.size() == BATCH_SIZE || (message == null && !batch.isEmpty())) {
+                    // Batches are only read ahead while a permit is available, bounding memory use
+                    // to the batches being verified or awaiting storage
+                    final List<Message> verifying = batch;
+                    inFlight.acquire();
+                    verifiers.execute(() -> {
+                        try {
+                            // Messages already stored are skipped rather than counted as imported,
+                            // with every message stored awaited as writes fail per group
+                            final List<CompletableFuture<Void>> stored =
+                                new ArrayList<>(verifying.size());
+                            for (Message m : verifying) {
+                                if (!m.verifyHash()) {
+                                    rejected.increment();
+                                    System.err.printf(
+                                        "Rejected message `%s` - hash mismatch\n",
+                                        m.getHash()
+                                    );
+                                } else if (MessageController.hasMessage(m.getHash()))
+                                    skipped.increment();
+                                else {
+                                    stored.add(MessageController.storeMessage(m));
+                                    imported.increment();
+                                }
+                            }
+                            CompletableFuture.allOf(stored.toArray(new CompletableFuture<?>[0]))
+                                .join();
+                        } catch (RuntimeException e) {
+                            failure.compareAndSet(null, e);
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+                if (message == null)
+                    break;
+            }
+        } finally {
+            verifiers.shutdown();
+            verifiers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+
+        if (failure.get() != null)
+            throw new IOException("Unable to store imported messages", failure.get());
+        return new long[]{imported.sum(), skipped.sum(), rejected.sum()};
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2
+            || args[0].equals("export") && args.length > 4
+            || args[0].equals("import") && args.length > 2) {
+            fail(USAGE);
+        }
+
+        try {
+            switch (args[0]) {
+                case "export":
+                    final long since = args.length > 2 ? Long.parseLong(args[2]) : Long.MIN_VALUE,
+                               until = args.length > 3 ? Long.parseLong(args[3]) : Long.MAX_VALUE;
+                    App.initStorage();
+                    final long exported = exportMessages(args[1], since, until);
+                    System.err.printf("%d messages exported\n", exported);
+                    break;
+                case "import":
+                    App.initStorage();
+                    final long[] results = importMessages(args[1]);
+                    System.err.printf(
+                        "%d messages imported, %d already stored, %d rejected\n",
+                        results[0],
+                        results[1],
+                        results[2]
+                    );
+                    break;
+                default:
+                    fail(USAGE);
+            }
+        } catch (NumberFormatException e) {
+            fail(USAGE);
+        } catch (IOException e) {
+            fail(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail("Interrupted");
+        }
+    }
+}
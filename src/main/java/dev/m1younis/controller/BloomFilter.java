@@ -0,0 +1,130 @@
+
+package dev.m1younis.controller;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe, scalable Bloom filter over message hashes, used to rule out absent messages
+ * without consulting storage.
+ *
+ * <p>
+ * The filter never reports a stored hash as absent, though it may report an absent hash as
+ * present at roughly the configured false-positive rate. Once the number of hashes added exceeds
+ * what the current layer was sized for, a new layer of twice the capacity and half the rate is
+ * started, bounding the overall rate to twice that configured without the filter having to be
+ * rebuilt.
+ * </p>
+ */
+public class BloomFilter {
+    private static final double LN2 = Math.log(2);
+
+    // A fixed-size bit array sized for a number of hashes at the target false-positive rate
+    private static class Layer {
+        private final AtomicLongArray bits;
+        private final long size,
+                           capacity;
+        private final double rate;
+        private final int functions;
+        private final AtomicLong count = new AtomicLong();
+
+        private Layer(long capacity, double rate) {
+            final long bits =
+                Math.max((long) Math.ceil(-capacity * Math.log(rate) / (LN2 * LN2)), 64);
+            this.bits = new AtomicLongArray((int) ((bits + 63) >>> 6));
+            this.size = (long) this.bits.length() << 6;
+            this.capacity = capacity;
+            this.rate = rate;
+            this.functions = Math.max((int) Math.round((double) this.size / capacity * LN2), 1);
+        }
+
+        private boolean mightContain(long h1, long h2) {
+            for (int i = 0; i < this.functions; i++) {
+                final long bit = Math.floorMod(h1 + i * h2, this.size);
+                if ((this.bits.get((int) (bit >>> 6)) & 1L << bit) == 0)
+                    return false;
+            }
+            return true;
+        }
+
+        private void add(long h1, long h2) {
+            for (int i = 0; i < this.functions; i++) {
+                final long bit = Math.floorMod(h1 + i * h2, this.size);
+                final int word = (int) (bit >>> 6);
+                final long mask = 1L << bit;
+                long current = this.bits.get(word);
+                while ((current & mask) == 0
+                    && !this.bits.compareAndSet(word, current, current | mask))
+                    current = this.bits.get(word);
+            }
+            this.count.incrementAndGet();
+        }
+    }
+
+    private final List<Layer> layers = new CopyOnWriteArrayList<>();
+
+    public BloomFilter(long capacity, double rate) {
+        this.layers.add(new Layer(Math.max(capacity, 1024), rate));
+    }
+
+    private static long mix(long h) {
+        // 64-bit finaliser from MurmurHash3, spreading arbitrary values across all bits
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ h >>> 33;
+    }
+
+    private static long[] hashesOf(String hash) {
+        // SHA-256 sums are already uniformly distributed, so their first two 64-bit words are used
+        // directly - any other input is mixed from its hash code instead
+        final long[] hashes = new long[2];
+        if (hash.length() >= 32) {
+            for (int i = 0; i < 32; i++) {
+                final int digit = Character.digit(hash.charAt(i), 16);
+                if (digit < 0) {
+                    hashes[0] = mix(hash.hashCode());
+                    hashes[1] = mix(hashes[0]);
+                    break;
+                }
+                hashes[i >> 4] = hashes[i >> 4] << 4 | digit;
+            }
+        } else {
+            hashes[0] = mix(hash.hashCode());
+            hashes[1] = mix(hashes[0]);
+        }
+        // An odd step ensures the probe sequence does not collapse onto a few bits
+        hashes[1] |= 1;
+        return hashes;
+    }
+
+    public boolean mightContain(String hash) {
+        if (hash == null)
+            return false;
+
+        final long[] hashes = hashesOf(hash);
+        for (Layer layer : this.layers) {
+            if (layer.mightContain(hashes[0], hashes[1]))
+                return true;
+        }
+        return false;
+    }
+
+    public void add(String hash) {
+        final long[] hashes = hashesOf(hash);
+        Layer layer = this.layers.get(this.layers.size() - 1);
+        if (layer.count.get() >= layer.capacity) {
+            synchronized (this.layers) {
+                layer = this.layers.get(this.layers.size() - 1);
+                if (layer.count.get() >= layer.capacity) {
+                    layer = new Layer(layer.capacity * 2, layer.rate / 2);
+                    this.layers.add(layer);
+                }
+            }
+        }
+        layer.add(hashes[0], hashes[1]);
+    }
+}
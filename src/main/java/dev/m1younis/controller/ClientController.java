@@ -4,11 +4,29 @@ package dev.m1younis.controller;
 import dev.m1younis.model.Client;
 import dev.m1younis.view.MainView;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A class acting as the app's server handler for incoming client threads (peers) and client
@@ -17,85 +35,310 @@ import java.util.List;
 public class ClientController extends Thread {
     private static final int DEFAULT_PORT = 1123;        // Default server port
 
-    // Server socket's connection fields
-    private ServerSocket server;
-    private Socket socket;
+    // Incoming peers are each served by a pooled platform thread, a virtual thread (from Java 21)
+    // or multiplexed over a small number of event loops
+    private static final String SERVER_MODE = System.getProperty("pm2p.server", "threads");
+    private static final boolean MULTIPLEXED = SERVER_MODE.equalsIgnoreCase("nio");
+    private static final int EVENT_LOOPS =
+        Math.max(Integer.getInteger("pm2p.server.loops", 2), 1);
+    private static final int SERVER_THREADS =
+        Math.max(Integer.getInteger("pm2p.server.threads", 64), 1);
+
+    // Maximum number of peers served (or awaiting a pooled thread) at once, beyond which further
+    // peers are turned away as soon as they are accepted
+    private static final int MAX_CONNECTIONS =
+        Math.max(Integer.getInteger("pm2p.server.connections", 256), 1);
+
+    // Time (in seconds) each session is given to answer a broadcast request, so that a peer which
+    // stops responding cannot hold up the results of the rest
+    private static final int RESPONSE_TIMEOUT =
+        Math.max(Integer.getInteger("pm2p.peer.timeout", 30), 1);
+
+    // Interval (in seconds) at which messages are synced from every session, if at all
+    private static final int SYNC_INTERVAL = Integer.getInteger("pm2p.sync.interval", 0);
+
+    private ServerSocket server;          // Server socket listening for peers
 
     private MainView ui;               // Allows the handler and UI to interact
 
-    private List<Client> peers;                       // Tracks connected peers
+    // Tracks connected peers, which are added and removed from different threads
+    private final PeerRegistry peers = new PeerRegistry();
+
+    // Outgoing connections keyed by peer address, any number of which can be open at once
+    private final Map<String, Client> sessions = new ConcurrentHashMap<>();
+
+    // Incoming peer UI requests are written to - volatile as it is replaced by the threads serving
+    // peers while read by the UI and other threads
+    private volatile Client target = null;
+
+    private EventLoop[] loops = null;         // Serves peers when multiplexed
+    private int accepted = 0;
+
+    // Runs client handlers, whether incoming or outgoing, with admission of incoming peers
+    // limited by the number of permits available
+    private final ExecutorService executor = createExecutor();
+    private final Semaphore admissions = new Semaphore(MAX_CONNECTIONS);
 
-    private Client self = null;            // Instance for outgoing connections
+    // Sessions currently being synced, none of which are synced again until finished
+    private final Set<Client> syncing = ConcurrentHashMap.newKeySet();
 
-    // Registers the number of contents for client `SHOW?` requests
+    // Registers the number of contents for client `SHOW?` requests, which are accumulated in
+    // `request` until complete
     private int contentsCount = 0;
+    private StringJoiner request = null;
+
+    // Tokenises requests entered in the UI, all of which are handled on the event dispatch thread
+    private final RequestParser parser = new RequestParser();
 
     public ClientController(MainView ui) {
         this.ui = ui;
-        this.peers = new ArrayList<>();
         try {
-            this.server = new ServerSocket(DEFAULT_PORT);
+            if (MULTIPLEXED) {
+                // Peers are accepted through a channel, so they can be registered with a selector
+                this.server = ServerSocketChannel.open()
+                    .bind(new InetSocketAddress(DEFAULT_PORT))
+                    .socket();
+                this.loops = new EventLoop[EVENT_LOOPS];
+                for (int i = 0; i < this.loops.length; i++) {
+                    this.loops[i] = new EventLoop(i);
+                    this.loops[i].start();
+                }
+            } else
+                this.server = new ServerSocket(DEFAULT_PORT);
+            if (SYNC_INTERVAL > 0) {
+                final ScheduledExecutorService scheduler =
+                    Executors.newSingleThreadScheduledExecutor(task -> {
+                        final Thread thread = new Thread(task, "pm2p-sync");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                scheduler.scheduleWithFixedDelay(
+                    this::sync,
+                    SYNC_INTERVAL,
+                    SYNC_INTERVAL,
+                    TimeUnit.SECONDS
+                );
+            }
             this.start();          // Invokes the `run` method's implementation
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    private static ExecutorService createExecutor() {
+        // Virtual threads are looked up reflectively so that the app still builds for and runs on
+        // Java 11, falling back to the thread pool where unavailable
+        if (SERVER_MODE.equalsIgnoreCase("virtual")) {
+            try {
+                return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads require Java 21, using a thread pool instead");
+            }
+        }
+
+        // Pool threads are only kept while in use, with peers beyond the pool's size waiting for
+        // a thread to be released
+        final AtomicInteger threads = new AtomicInteger();
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            SERVER_THREADS,
+            SERVER_THREADS,
+            60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            task -> new Thread(task, String.format("pm2p-client-%d", threads.incrementAndGet()))
+        );
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
     private boolean isValidRequest(String input) {
         // Skips validation on inputs for `SHOW?` contents by checking count value
         if (this.contentsCount != 0) {
             this.contentsCount--;
             return true;
         } else {
-            final String[] meta = input.split("\\s+");
-            if (meta.length == 1)
+            final RequestParser.Kind kind = this.parser.parse(input);
+            final int tokens = this.parser.count();
+            if (tokens == 1)
                 return input.equals("HELP?") || input.equals("TIME?") || input.equals("QUIT!");
-            else if (meta.length == 2)
-                return input.startsWith("LOAD?");
-            else if (meta.length == 3)
-                return input.startsWith("ACK? PM/") || input.startsWith("SHOW?");
+            else if (kind == RequestParser.Kind.LOAD)
+                return true;                     // Several hashes may be loaded at once in v2
+            else if (tokens == 3)
+                return input.startsWith("ACK? PM/") || kind == RequestParser.Kind.SHOW;
             else
                 return false;
         }
     }
 
     public void connect(String identifier, String host, int port) throws Exception {
-        if (this.self == null) {
-            this.socket = new Socket(host, port);
-            this.self = new Client(this.socket, this.ui, identifier, false);
-            this.self.start();
-            this.ui.setConnectionPanelState(false, false);
+        // Sessions can be opened with any number of peers, though only one per peer and never
+        // alongside incoming peers
+        final String key = String.format("%s:%d", host, port);
+        if (this.peers.isEmpty() && !this.sessions.containsKey(key)) {
+            final Client session = new Client(new Socket(host, port), this.ui, identifier, false);
+            this.sessions.put(key, session);
+            this.executor.execute(session);
+            this.ui.setConnectionPanelState(true, true);
+            this.ui.setDisconnectButtonState(true);
             this.ui.setActivityPanelState(true);
         }
     }
 
     public void disconnect() {
-        try {
-            this.socket.close();
+        // Every session is closed, each removing itself once its client stops
+        if (this.sessions.isEmpty()) {
             this.ui.setConnectionPanelState(true, false);
             this.ui.setActivityPanelState(false);
-            if (this.self != null)
-                this.self = null;
-        } catch (IOException e) {
-            e.printStackTrace();
+        }
+        for (Client session : this.sessions.values())
+            session.disconnect();
+    }
+
+    public void removeSession(Client session) {
+        this.sessions.values().remove(session);
+        if (this.sessions.isEmpty()) {
+            this.ui.setConnectionPanelState(true, false);
+            this.ui.setActivityPanelState(false);
+        }
+    }
+
+    public CompletableFuture<Map<String, String>> broadcast(String request) {
+        // Sends the request to every session at once, completing with each peer's response once
+        // all have answered - peers failing or timing out before responding are left out
+        final Map<String, CompletableFuture<String>> pending = new LinkedHashMap<>();
+        this.sessions.forEach((peer, session) -> pending.put(
+            peer,
+            session.request(request)
+                .orTimeout(RESPONSE_TIMEOUT, TimeUnit.SECONDS)
+                .handle((response, e) -> response)
+        ));
+
+        return CompletableFuture.allOf(pending.values().toArray(new CompletableFuture<?>[0]))
+            .thenApply(v -> {
+                final Map<String, String> responses = new LinkedHashMap<>();
+                pending.forEach((peer, response) -> {
+                    if (response.join() != null)
+                        responses.put(peer, response.join());
+                });
+                return responses;
+            });
+    }
+
+    public CompletableFuture<Integer> sync() {
+        // Syncs every session at once, completing with the total number of messages stored - the
+        // activity log only records syncs which stored anything
+        final List<CompletableFuture<Integer>> synced = new ArrayList<>();
+        for (Client session : this.sessions.values()) {
+            if (!this.syncing.add(session))
+                continue;
+            synced.add(SyncController.sync(session)
+                .whenComplete((stored, e) -> this.syncing.remove(session))
+                .exceptionally(e -> 0));
+        }
+
+        return CompletableFuture.allOf(synced.toArray(new CompletableFuture<?>[0]))
+            .thenApply(v -> {
+                final int stored = synced.stream().mapToInt(CompletableFuture::join).sum();
+                if (stored > 0) {
+                    this.ui.updateActivityArea(
+                        String.format("Synced %d messages from %d peers", stored, synced.size()),
+                        null
+                    );
+                }
+                return stored;
+            });
+    }
+
+    public static String mergeEntries(Collection<String> responses) {
+        // Combines `SHOW?` responses into one, listing each hash once regardless of how many
+        // peers hold its message
+        final Set<String> hashes = new LinkedHashSet<>();
+        for (String response : responses) {
+            if (response.startsWith("ENTRIES")) {
+                for (String line : response.split("\n")) {
+                    if (line.startsWith("> "))
+                        hashes.add(line);
+                }
+            }
+        }
+        if (hashes.isEmpty())
+            return "NONE";
+
+        final StringJoiner merged =
+            new StringJoiner("\n").add(String.format("ENTRIES %d", hashes.size()));
+        hashes.forEach(merged::add);
+        return merged.toString();
+    }
+
+    private void dispatch(String request) throws IOException {
+        final boolean answered = RequestParser.Kind.of(request).isAnswered();
+        final Client target = this.target;
+        if (!this.sessions.isEmpty()) {
+            // Requests are broadcast to every session, with responses shown together once the
+            // slowest peer has answered
+            if (answered) {
+                final int total = this.sessions.size();
+                this.broadcast(request).thenAccept(responses -> {
+                    if (responses.isEmpty())
+                        return;
+                    // `SHOW?` responses are merged, while the rest are listed by peer
+                    String summary = mergeEntries(responses.values());
+                    if (!request.startsWith("SHOW?")) {
+                        final StringJoiner lines = new StringJoiner("\n").add(request);
+                        responses.forEach((peer, response) ->
+                            lines.add(String.format("%s %s", peer, response.split("\n")[0]))
+                        );
+                        summary = lines.toString();
+                    }
+                    this.ui.updateActivityArea(
+                        summary,
+                        String.format("%d/%d peers", responses.size(), total)
+                    );
+                });
+            } else {
+                for (Client session : this.sessions.values())
+                    session.send(request);
+            }
+        } else if (target != null) {
+            // Answered requests go to the latest peer, while the rest are written to every peer as
+            // they would be to every session
+            if (answered)
+                target.request(request);
+            else
+                this.peers.broadcast(request);
         }
     }
 
     public void handleRequest(String input) {
-        if (this.socket != null) {
+        if (this.target != null || !this.sessions.isEmpty()) {
             try {
+                final boolean contents = this.contentsCount != 0;
                 if (this.isValidRequest(input)) {
-                    // Input meta can be operated on directly after validation
-                    final String[] meta = input.split("\\s+");
+                    // Input tokens can be operated on directly after validation
                     // Multi-content `SHOW?` requests handled exclusively due to possible type
                     // exceptions being raised when parsing arguments
-                    if (meta[0].equals("SHOW?")) {
-                        Long.parseLong(meta[1]);
-                        this.contentsCount = Integer.parseInt(meta[2]);
+                    if (!contents && this.parser.getKind() == RequestParser.Kind.SHOW) {
+                        this.parser.parseLong(1);
+                        this.contentsCount = this.parser.parseInt(2);
+                    }
+                    // Requests are sent whole once their last line is entered, so they can be
+                    // written to every session without interleaving
+                    this.request = contents ?
+                        this.request.add(input) : new StringJoiner("\n").add(input);
+                    if (this.contentsCount == 0) {
+                        final String request = this.request.toString();
+                        this.request = null;
+                        this.dispatch(request);
                     }
-                    new PrintWriter(this.socket.getOutputStream(), true).println(input);
-                } else
+                } else if (!this.sessions.isEmpty())
                     this.disconnect();
+                else {
+                    final Client target = this.target;
+                    if (target != null)
+                        target.disconnect();
+                }
                 this.ui.updateActivityArea(input, null);
             } catch (IOException e) {
                 e.printStackTrace();
@@ -108,8 +351,20 @@ public class ClientController extends Thread {
         }
     }
 
+    public PeerRegistry getPeers() {
+        return this.peers;
+    }
+
     public void removePeer(Client client) {
-        this.peers.remove(client);
+        // Each peer's traffic is reported once it leaves
+        final PeerRegistry.Peer peer = this.peers.remove(client);
+        if (peer != null) {
+            if (!MULTIPLEXED)
+                this.admissions.release();
+            System.out.printf("Stats for %s\n", peer);
+        }
+        if (this.target == client)
+            this.target = this.peers.getLatest();
         // Reactivates connection panel and disables UI request handling once all peers have left
         if (this.peers.isEmpty()) {
             this.ui.setConnectionPanelState(true, true);
@@ -123,23 +378,39 @@ public class ClientController extends Thread {
         try {
             while (true) {
                 // The `accept` method below listens for incoming clients on the server port
-                // specified above - peers can only connect if the client instance is empty
-                this.socket = this.server.accept();
-                if (this.self == null) {
-                    // Prevents UI from establishing an outgoing connection given incoming
-                    // connections
-                    if (this.peers.isEmpty()) {
-                        this.ui.setConnectionPanelState(false, true);
-                        this.ui.setActivityPanelState(true);
-                    }
-                    final Client client = new Client(this.socket, this.ui, null, true);
-                    this.peers.add(client);
-                    client.start();
+                // specified above - peers can only connect while no sessions are open
+                final SocketChannel channel =
+                    this.loops != null ? this.server.getChannel().accept() : null;
+                final Socket socket = channel != null ? channel.socket() : this.server.accept();
+                if (!this.sessions.isEmpty()) {
+                    // Incoming peers are turned away while sessions are open, rather than left
+                    // connected without a handler
+                    socket.close();
+                    continue;
+                }
+                if (!MULTIPLEXED && !this.admissions.tryAcquire()) {
                     System.out.printf(
-                        "Client connected from %s\n",
-                        this.socket.getRemoteSocketAddress()
+                        "Client from %s rejected, %d peers already connected\n",
+                        socket.getRemoteSocketAddress(),
+                        MAX_CONNECTIONS
                     );
+                    socket.close();
+                    continue;
+                }
+
+                // Prevents UI from establishing an outgoing connection given incoming connections
+                if (this.peers.isEmpty()) {
+                    this.ui.setConnectionPanelState(false, true);
+                    this.ui.setActivityPanelState(true);
                 }
+                final Client client = new Client(socket, this.ui, null, true);
+                this.peers.register(client);
+                this.target = client;
+                if (channel != null)
+                    this.loops[this.accepted++ % this.loops.length].register(channel, client);
+                else
+                    this.executor.execute(client);
+                System.out.printf("Client connected from %s\n", socket.getRemoteSocketAddress());
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -0,0 +1,231 @@
+
+package dev.m1younis.controller;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.sqlite.Function;
+
+/**
+ * A class for compressing stored message contents against shared dictionaries trained from
+ * previously stored messages.
+ *
+ * <p>
+ * Compressed contents are stored as blobs starting with a format version byte, followed by the
+ * identifier of the dictionary they were compressed against (zero if none) and their uncompressed
+ * length. Contents stored as text, whether by earlier versions or because compression would not
+ * have reduced their size, carry no such header and are read as-is.
+ * </p>
+ */
+public class ContentCodec {
+    static final boolean ENABLED =
+        Boolean.parseBoolean(System.getProperty("pm2p.compress", "true"));
+
+    private static final byte FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = 9;
+
+    // Dictionaries are trained once enough messages are stored to be representative, drawing on
+    // the most recent ones - deflate only looks back 32 KiB, so larger dictionaries are wasted
+    static final int TRAINING_MIN_MESSAGES = 256,
+                      TRAINING_SAMPLE_SIZE = 4096;
+    private static final int DICTIONARY_SIZE = 16 << 10,
+                         MIN_FRAGMENT_LENGTH = 4;
+
+    // SQLite's fundamental datatype code for blob values
+    private static final int SQLITE_BLOB = 4;
+
+    // Every known dictionary by its identifier, with new contents compressed against the latest
+    private static final Map<Integer, byte[]> DICTIONARIES = new ConcurrentHashMap<>();
+    private static volatile int current = 0;
+
+    // Compression streams allocate native buffers, so one of each is kept per thread and reset
+    // between uses
+    private static final ThreadLocal<Deflater> DEFLATERS =
+        ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_COMPRESSION, true));
+    private static final ThreadLocal<Inflater> INFLATERS =
+        ThreadLocal.withInitial(() -> new Inflater(true));
+
+    public static void register(int id, byte[] dictionary) {
+        DICTIONARIES.put(id, dictionary);
+        if (id > current)
+            current = id;
+    }
+
+    public static boolean isTrained() {
+        return current != 0;
+    }
+
+    public static byte[] encode(String contents) {
+        // Returns `null` given compression would not make the contents any smaller, in which case
+        // they are better stored as text
+        final byte[] raw = contents.getBytes(StandardCharsets.UTF_8);
+        final int id = current;
+        final Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        if (id != 0)
+            deflater.setDictionary(DICTIONARIES.get(id));
+        deflater.setInput(raw);
+        deflater.finish();
+
+        final byte[] encoded = new byte[HEADER_LENGTH + raw.length];
+        encoded[0] = FORMAT_VERSION;
+        writeInt(encoded, 1, id);
+        writeInt(encoded, 5, raw.length);
+        int length = HEADER_LENGTH;
+        while (!deflater.finished()) {
+            if (length == encoded.length)
+                return null;
+            length += deflater.deflate(encoded, length, encoded.length - length);
+        }
+
+        return Arrays.copyOf(encoded, length);
+    }
+
+    public static String decode(byte[] encoded) {
+        if (encoded.length < HEADER_LENGTH || encoded[0] != FORMAT_VERSION)
+            throw new IllegalArgumentException("Unsupported message contents format");
+
+        final int id = readInt(encoded, 1);
+        final byte[] raw = new byte[readInt(encoded, 5)];
+        final Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        if (id != 0) {
+            final byte[] dictionary = DICTIONARIES.get(id);
+            if (dictionary == null)
+                throw new IllegalStateException(String.format("Unknown dictionary %d", id));
+            inflater.setDictionary(dictionary);
+        }
+        inflater.setInput(encoded, HEADER_LENGTH, encoded.length - HEADER_LENGTH);
+
+        try {
+            int length = 0;
+            while (length < raw.length) {
+                final int inflated = inflater.inflate(raw, length, raw.length - length);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput()))
+                    throw new DataFormatException("Truncated message contents");
+                length += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException(e);
+        }
+
+        return new String(raw, StandardCharsets.UTF_8);
+    }
+
+    public static int decodedLength(byte[] encoded) {
+        return readInt(encoded, 5);
+    }
+
+    public static byte[] train(List<String> samples) {
+        // Lines and words recurring across messages are ranked by the number of bytes they would
+        // save, with fragments found in only one message ignored
+        final Map<String, Integer> counts = new HashMap<>();
+        for (String sample : samples) {
+            final Set<String> fragments = new HashSet<>();
+            for (String line : sample.split("\n")) {
+                if (line.length() >= MIN_FRAGMENT_LENGTH)
+                    fragments.add(line);
+                for (String word : line.split("\\s+")) {
+                    if (word.length() >= MIN_FRAGMENT_LENGTH)
+                        fragments.add(word);
+                }
+            }
+            for (String fragment : fragments)
+                counts.merge(fragment, 1, Integer::sum);
+        }
+
+        final List<String> ranked = new ArrayList<>();
+        counts.entrySet().stream()
+            .filter(e -> e.getValue() > 1)
+            .sorted((a, b) -> Long.compare(
+                (long) (b.getValue() - 1) * b.getKey().length(),
+                (long) (a.getValue() - 1) * a.getKey().length()
+            ))
+            .map(Map.Entry::getKey)
+            .forEach(ranked::add);
+
+        final List<byte[]> chosen = new ArrayList<>();
+        int size = 0;
+        for (String fragment : ranked) {
+            final byte[] bytes = (fragment + "\n").getBytes(StandardCharsets.UTF_8);
+            if (size + bytes.length > DICTIONARY_SIZE)
+                continue;
+            chosen.add(bytes);
+            size += bytes.length;
+        }
+
+        // The most valuable fragments are placed last, as deflate encodes nearer matches with
+        // fewer bits
+        final ByteArrayOutputStream dictionary = new ByteArrayOutputStream(size);
+        for (int i = chosen.size() - 1; i >= 0; i--)
+            dictionary.writeBytes(chosen.get(i));
+        return dictionary.toByteArray();
+    }
+
+    // Functions reading stored contents from their single argument as text, whatever the format
+    private abstract static class ContentsFunction extends Function {
+        protected String contents() throws SQLException {
+            return this.value_type(0) == SQLITE_BLOB
+                ? decode(this.value_blob(0))
+                : this.value_text(0);
+        }
+    }
+
+    public static void install(Connection conn) throws SQLException {
+        // Registers `pm_contents` on the connection, which yields stored contents as text
+        // regardless of their format
+        Function.create(conn, "pm_contents", new ContentsFunction() {
+            @Override
+            protected void xFunc() throws SQLException {
+                try {
+                    this.result(this.contents());
+                } catch (IllegalArgumentException | IllegalStateException e) {
+                    this.error(e.getMessage());
+                }
+            }
+        }, 1, Function.FLAG_DETERMINISTIC);
+
+        // Registers `pm_contents_section` alongside it, which yields the `Contents` header of the
+        // message body followed by the contents themselves, decoding them once for both
+        Function.create(conn, "pm_contents_section", new ContentsFunction() {
+            @Override
+            protected void xFunc() throws SQLException {
+                try {
+                    final String contents = this.contents();
+                    int lines = 1;
+                    for (int i = contents.indexOf('\n'); i >= 0; i = contents.indexOf('\n', i + 1))
+                        lines++;
+                    this.result("Contents: " + lines + "\n" + contents);
+                } catch (IllegalArgumentException | IllegalStateException e) {
+                    this.error(e.getMessage());
+                }
+            }
+        }, 1, Function.FLAG_DETERMINISTIC);
+    }
+
+    private static void writeInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return (b[offset] & 0xff) << 24
+            | (b[offset + 1] & 0xff) << 16
+            | (b[offset + 2] & 0xff) << 8
+            | b[offset + 3] & 0xff;
+    }
+}
@@ -3,26 +3,227 @@ package dev.m1younis.controller;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * A class that handles interaction with the local SQLite database utilised for persistent message
  * storage.
+ *
+ * <p>
+ * Long-lived connections are pooled rather than opened per operation - SQLite permits a single
+ * writer alongside any number of readers in WAL mode, so one dedicated write connection is kept
+ * next to a fixed number of read-only connections, each caching its prepared statements.
+ * </p>
  */
 public class DatabaseController {
-    public static final String DATABASE_PATH = "src/main/resources/pm2p.db";
+    public static final String DATABASE_PATH =
+        System.getProperty("pm2p.db", "src/main/resources/pm2p.db");
 
-    public static Connection connect() {
+    // Index backing `created`-bounded range scans such as those performed for `SHOW?` requests
+    private static final String CREATED_INDEX_QUERY =
+        "CREATE INDEX IF NOT EXISTS `messages_created` ON `messages` (`created`)";
+
+    // SQL equivalent of `Message.toString`, allowing `SHOW?` content filters to be evaluated by
+    // SQLite rather than on materialised `Message` objects - the `Contents` header and the stored
+    // contents, decompressed where necessary, are produced together by the `pm_contents_section`
+    // function registered on every connection, so each row's contents are only decoded once
+    static final String MESSAGE_BODY_EXPRESSION =
+        "'Message-uid: SHA-256 ' || `uid` || char(10) "
+        + "|| 'Created: ' || `created` || char(10) "
+        + "|| 'From: ' || `sender` || char(10) "
+        + "|| COALESCE('To: ' || `recipient` || char(10), '') "
+        + "|| COALESCE('Topic: ' || `topic` || char(10), '') "
+        + "|| COALESCE('Subject: ' || `subject` || char(10), '') "
+        + "|| pm_contents_section(`contents`)";
+
+    // Shared dictionaries that stored message contents are compressed against
+    private static final String DICTIONARIES_TABLE_QUERY =
+        "CREATE TABLE IF NOT EXISTS `dictionaries` ("
+        + "`id` INTEGER PRIMARY KEY, "
+        + "`data` BLOB NOT NULL)";
+
+    // Latest creation time of the messages synced from each peer, keyed by its identifier
+    private static final String WATERMARKS_TABLE_QUERY =
+        "CREATE TABLE IF NOT EXISTS `watermarks` ("
+        + "`peer` TEXT PRIMARY KEY NOT NULL, "
+        + "`created` INTEGER NOT NULL)";
+    private static final String SELECT_WATERMARK_QUERY =
+        "SELECT `created` FROM `watermarks` WHERE `peer` = ?";
+    private static final String UPDATE_WATERMARK_QUERY =
+        "INSERT INTO `watermarks` (`peer`, `created`) VALUES (?, ?) "
+        + "ON CONFLICT (`peer`) DO UPDATE SET `created` = max(`created`, `excluded`.`created`)";
+
+    // Optional trigram index over message bodies used to answer `SHOW?` content filters
+    static final boolean FULL_TEXT_INDEX =
+        Boolean.parseBoolean(System.getProperty("pm2p.fts", "true"));
+    private static final String FULL_TEXT_INDEX_QUERY =
+        "CREATE VIRTUAL TABLE `messages_fts` USING fts5("
+        + "`body`, content = '', tokenize = 'trigram case_sensitive 1')";
+
+    // Pragmas applied to every pooled connection - WAL allows readers to proceed concurrently
+    // with the writer, while `NORMAL` synchronisation only syncs the log at checkpoints
+    private static final List<String> CONNECTION_PRAGMAS = List.of(
+        "PRAGMA journal_mode = WAL",
+        "PRAGMA synchronous = NORMAL",
+        "PRAGMA cache_size = -16384",
+        "PRAGMA temp_store = MEMORY",
+        "PRAGMA busy_timeout = 5000"
+    );
+
+    private static final int READER_POOL_SIZE =
+        Math.max(Integer.getInteger("pm2p.db.readers", 4), 1);
+
+    // Connection pools are filled lazily up to their capacity
+    private static final BlockingQueue<PooledConnection>
+        READERS = new ArrayBlockingQueue<>(READER_POOL_SIZE),
+         WRITER = new ArrayBlockingQueue<>(1);
+    private static final List<PooledConnection> OPENED = new ArrayList<>();
+
+    static {
         try {
             Class.forName("org.sqlite.JDBC");
-            return DriverManager.getConnection(String.format("jdbc:sqlite:%s", DATABASE_PATH));
-        } catch (ClassNotFoundException | SQLException e) {
+        } catch (ClassNotFoundException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * A pooled database connection whose prepared statements are cached by their SQL text, and
+     * which is returned to its pool upon being closed.
+     */
+    public static class PooledConnection implements AutoCloseable {
+        private final Connection conn;
+        private final BlockingQueue<PooledConnection> pool;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        private PooledConnection(Connection conn, BlockingQueue<PooledConnection> pool) {
+            this.conn = conn;
+            this.pool = pool;
+        }
+
+        public Connection getConnection() {
+            return this.conn;
+        }
+
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement stmt = this.statements.get(sql);
+            if (stmt == null) {
+                stmt = this.conn.prepareStatement(sql);
+                this.statements.put(sql, stmt);
+            }
+            return stmt;
+        }
+
+        @Override
+        public void close() {
+            this.pool.offer(this);
+        }
+    }
+
+    public static Connection connect() {
+        try {
+            final Connection conn =
+                DriverManager.getConnection(String.format("jdbc:sqlite:%s", DATABASE_PATH));
+            ContentCodec.install(conn);
+            return conn;
+        } catch (SQLException e) {
             e.printStackTrace();
             return null;
         }
     }
 
+    private static PooledConnection open(BlockingQueue<PooledConnection> pool, boolean write)
+        throws SQLException {
+        final Connection conn = connect();
+        if (conn == null)
+            throw new SQLException(String.format("Unable to connect to `%s`", DATABASE_PATH));
+
+        final Statement stmt = conn.createStatement();
+        for (String pragma : CONNECTION_PRAGMAS)
+            stmt.execute(pragma);
+        if (!write)
+            stmt.execute("PRAGMA query_only = ON");
+        stmt.close();
+
+        return new PooledConnection(conn, pool);
+    }
+
+    public static PooledConnection acquire(boolean write) throws SQLException {
+        // Idle connections are reused where possible, otherwise a new one is opened provided the
+        // pool has not reached its capacity - callers wait for a connection to be released if so
+        final BlockingQueue<PooledConnection> pool = write ? WRITER : READERS;
+        PooledConnection pooled = pool.poll();
+        if (pooled != null)
+            return pooled;
+
+        synchronized (OPENED) {
+            final long opened = OPENED.stream().filter(c -> c.pool == pool).count();
+            if (opened < (write ? 1 : READER_POOL_SIZE)) {
+                pooled = open(pool, write);
+                OPENED.add(pooled);
+                return pooled;
+            }
+        }
+
+        try {
+            return pool.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+    }
+
+    public static long getWatermark(String peer) {
+        // Peers never synced with have every message listed, from the start of the Unix Epoch
+        try (PooledConnection pooled = acquire(false)) {
+            final PreparedStatement stmt = pooled.prepare(SELECT_WATERMARK_QUERY);
+            stmt.setString(1, peer);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    public static void setWatermark(String peer, long created) {
+        // Watermarks only ever advance, should syncs with the same peer complete out of order
+        try (PooledConnection pooled = acquire(true)) {
+            final PreparedStatement stmt = pooled.prepare(UPDATE_WATERMARK_QUERY);
+            stmt.setString(1, peer);
+            stmt.setLong(2, created);
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static void shutdown() {
+        // Closes every pooled connection, which also checkpoints the WAL into the database file
+        synchronized (OPENED) {
+            for (PooledConnection pooled : OPENED) {
+                try {
+                    pooled.conn.close();
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+            OPENED.clear();
+            READERS.clear();
+            WRITER.clear();
+        }
+    }
+
     public static void init() {
         // A method for initialising the local database upon first-time launch
         final Connection conn = DatabaseController.connect();
@@ -40,6 +241,7 @@ public class DatabaseController {
                 + "`topic` TEXT, "
                 + "`subject` TEXT)"
             );
+            stmt.executeUpdate(CREATED_INDEX_QUERY);
 
             // Initial message object written to newly created `messages` table
             stmt.executeUpdate(
@@ -62,4 +264,81 @@ public class DatabaseController {
             }
         }
     }
+
+    static boolean train(Connection conn) throws SQLException {
+        // A dictionary is trained from the most recent messages once enough are stored, and
+        // applies to messages stored thereafter - existing rows are left in their current format.
+        // Returns whether there were enough messages to train from, even if no dictionary resulted
+        final List<String> samples = new ArrayList<>();
+        try (PreparedStatement stmt = conn.prepareStatement(
+            "SELECT pm_contents(`contents`) FROM `messages` ORDER BY `created` DESC LIMIT ?"
+        )) {
+            stmt.setInt(1, ContentCodec.TRAINING_SAMPLE_SIZE);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next())
+                    samples.add(rs.getString(1));
+            }
+        }
+        if (samples.size() < ContentCodec.TRAINING_MIN_MESSAGES)
+            return false;
+
+        final byte[] dictionary = ContentCodec.train(samples);
+        if (dictionary.length == 0)
+            return true;
+        try (PreparedStatement stmt = conn.prepareStatement(
+            "INSERT INTO `dictionaries` (`id`, `data`) VALUES (1, ?)"
+        )) {
+            stmt.setBytes(1, dictionary);
+            stmt.executeUpdate();
+        }
+        ContentCodec.register(1, dictionary);
+        return true;
+    }
+
+    public static void migrate() {
+        // Brings databases created by earlier versions up to date - every statement here must be
+        // safe to run on each launch
+        final Connection conn = DatabaseController.connect();
+        try {
+            final Statement stmt = conn.createStatement();
+            stmt.executeUpdate(CREATED_INDEX_QUERY);
+            stmt.executeUpdate(WATERMARKS_TABLE_QUERY);
+
+            // Dictionaries must be known before any compressed contents are read, including by the
+            // full-text index backfill below
+            stmt.executeUpdate(DICTIONARIES_TABLE_QUERY);
+            try (ResultSet rs = stmt.executeQuery("SELECT `id`, `data` FROM `dictionaries`")) {
+                while (rs.next())
+                    ContentCodec.register(rs.getInt("id"), rs.getBytes("data"));
+            }
+            if (ContentCodec.ENABLED && !ContentCodec.isTrained())
+                train(conn);
+
+            // The full-text index is built from existing messages when first enabled, and dropped
+            // when disabled so that it is never left incomplete
+            final boolean indexed = stmt.executeQuery(
+                "SELECT 1 FROM `sqlite_master` WHERE `name` = 'messages_fts'"
+            ).next();
+            if (FULL_TEXT_INDEX && !indexed) {
+                conn.setAutoCommit(false);
+                stmt.executeUpdate(FULL_TEXT_INDEX_QUERY);
+                stmt.executeUpdate(String.format(
+                    "INSERT INTO `messages_fts` (`rowid`, `body`) SELECT `rowid`, %s "
+                    + "FROM `messages`",
+                    MESSAGE_BODY_EXPRESSION
+                ));
+                conn.commit();
+            } else if (!FULL_TEXT_INDEX && indexed)
+                stmt.executeUpdate("DROP TABLE `messages_fts`");
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (conn != null)
+                    conn.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 }
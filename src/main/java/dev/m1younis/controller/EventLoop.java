@@ -0,0 +1,607 @@
+
+package dev.m1younis.controller;
+
+import dev.m1younis.model.Client;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * An event loop thread serving any number of peer connections over a single selector, as an
+ * alternative to dedicating a thread to each connected peer.
+ *
+ * <p>
+ * Received bytes are framed into lines by each connection and handed to its client one at a time
+ * on a shared pool of workers, which runs the same protocol handling as when clients are run by
+ * their own threads - the loop itself never waits on a store or the UI. Output is handed back to
+ * the loop to be written, with responses too long to be written at once streamed in parts - once
+ * a connection has more than a limited amount queued, its worker returns and the rest is resumed by
+ * another once the peer has read enough of it, so workers are never held up by slow peers. A
+ * connection stops reading further requests while a line is being handled or its responses are
+ * still being written, so that slow peers cannot make their output accumulate - idle connections
+ * hold no buffers at all.
+ * </p>
+ *
+ * <p>
+ * Requests beyond a client's allowance are held back, along with any further reading from its
+ * connection, until allowed. Connections are swept every second for peers which have gone silent,
+ * are sending a line too slowly or have stopped reading their responses.
+ * </p>
+ */
+public class EventLoop extends Thread {
+    private static final int READ_BUFFER_SIZE = 1 << 16,
+                            OUTPUT_CHUNK_SIZE = 1 << 13,
+                                 OUTPUT_LIMIT = 1 << 18,
+                              MAX_LINE_LENGTH = LineReader.MAX_LINE_LENGTH;
+    private static final long SWEEP_INTERVAL = 1_000_000_000L;
+
+    // Workers handling lines and resuming streamed responses for every event loop
+    private static final int WORKER_THREADS =
+        Math.max(Integer.getInteger("pm2p.server.workers", 16), 1);
+    private static final ExecutorService WORKERS = createWorkers();
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    // Connections holding back a line, ordered by when it may next be handled
+    private final PriorityQueue<Connection> deferred =
+        new PriorityQueue<>(Comparator.comparingLong(conn -> conn.resume));
+    private long swept = System.nanoTime();
+
+    // Shared by every connection, as reads are handled one at a time
+    private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final byte[] inflated = new byte[READ_BUFFER_SIZE];
+
+    // A peer connection's framing and output state
+    private class Connection implements Client.Transport {
+        private final SocketChannel channel;
+        private final Client client;
+        private SelectionKey key;
+        private PrintStream writer;
+
+        // Received bytes yet to be handled, with `scanned` marking how far a line break has been
+        // searched for - released once everything received has been handled
+        private byte[] input = null;
+        private int start = 0,
+                      end = 0,
+                  scanned = 0;
+        private boolean received = true,   // Whether the peer may still send further input
+                          closing = false;
+
+        // Decompresses input once the peer announces compression
+        private Inflater inflater = null;
+
+        // When the connection last handled a line, began receiving one or made progress writing,
+        // against which it is timed out
+        private long since = System.nanoTime();
+
+        // A line held back until allowed by the client, which stops further reading meanwhile
+        private String held = null;
+        private long resume = 0;
+        private boolean isDeferred = false;
+
+        // Whether a worker is handling a line (or resuming a response), and whether the client has
+        // a response left to be resumed once enough pending output is written
+        private boolean handling = false,
+                       streaming = false,
+                       inflating = false;     // Whether input is to be decompressed once handled
+
+        // Output chunks awaiting a writable socket, guarded by the queue itself as output is
+        // written from workers and the UI thread
+        private final ArrayDeque<byte[]> output = new ArrayDeque<>();
+        private int head = 0,               // Bytes of the first chunk already written
+                    tail = 0,               // Bytes of the last chunk filled
+                 pending = 0;               // Bytes queued yet to be written
+        private boolean scheduled = false,  // Whether the loop is yet to pick up flushed output
+                        discarded = false;  // Whether output is dropped as the connection closed
+
+        private Connection(SocketChannel channel, Client client) {
+            this.channel = channel;
+            this.client = client;
+        }
+
+        private boolean hasOutput() {
+            synchronized (this.output) {
+                return !this.output.isEmpty();
+            }
+        }
+
+        @Override
+        public boolean isBacklogged() {
+            synchronized (this.output) {
+                return this.pending >= OUTPUT_LIMIT;
+            }
+        }
+
+        private boolean canResume() {
+            // Streamed responses are resumed once half the limit is written, so that each worker
+            // has a useful amount to write
+            synchronized (this.output) {
+                return this.pending <= OUTPUT_LIMIT / 2;
+            }
+        }
+
+        private void discard() {
+            // Drops pending output along with anything written afterwards
+            synchronized (this.output) {
+                this.output.clear();
+                this.head = 0;
+                this.pending = 0;
+                this.discarded = true;
+            }
+        }
+
+        @Override
+        public void inflateInput() {
+            // Called by the worker handling the line preceding the compressed input, so the input
+            // is switched over by the loop once it is handled
+            this.inflating = true;
+        }
+
+        @Override
+        public PrintStream deflateOutput() {
+            // Compressed output is sync flushed along with the writer, so every response is
+            // written to the peer in full as before
+            this.writer = new PrintStream(new BufferedOutputStream(new DeflaterOutputStream(
+                new Output(this),
+                new Deflater(Deflater.DEFAULT_COMPRESSION, true),
+                true
+            )), false, StandardCharsets.UTF_8);
+            return this.writer;
+        }
+    }
+
+    // Copies written bytes straight into a connection's output chunks, which are themselves the
+    // only buffer - nothing is allocated for connections with no output pending
+    private class Output extends OutputStream {
+        private final Connection conn;
+
+        private Output(Connection conn) {
+            this.conn = conn;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            final ArrayDeque<byte[]> output = this.conn.output;
+            final int end = off + len;
+            synchronized (output) {
+                if (this.conn.discarded)
+                    return;
+                this.conn.pending += len;
+                while (off < end) {
+                    byte[] chunk = output.peekLast();
+                    if (chunk == null || this.conn.tail == chunk.length) {
+                        chunk = new byte[Math.max(end - off, OUTPUT_CHUNK_SIZE)];
+                        output.add(chunk);
+                        this.conn.tail = 0;
+                    }
+                    final int n = Math.min(end - off, chunk.length - this.conn.tail);
+                    System.arraycopy(b, off, chunk, this.conn.tail, n);
+                    this.conn.tail += n;
+                    off += n;
+                }
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void flush() {
+            synchronized (this.conn.output) {
+                this.schedule();
+            }
+        }
+
+        private void schedule() {
+            // Has the loop write queued output, once until it does so - called with the output's
+            // monitor held
+            if (this.conn.scheduled || this.conn.output.isEmpty())
+                return;
+            this.conn.scheduled = true;
+            EventLoop.this.execute(() -> {
+                synchronized (this.conn.output) {
+                    this.conn.scheduled = false;
+                }
+                EventLoop.this.update(this.conn);
+            });
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public EventLoop(int id) throws IOException {
+        super(String.format("pm2p-event-loop-%d", id));
+        this.setDaemon(true);
+        this.selector = Selector.open();
+    }
+
+    private static ExecutorService createWorkers() {
+        // Workers are only kept while in use, as with the threads serving unmultiplexed peers
+        final AtomicInteger threads = new AtomicInteger();
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            WORKER_THREADS,
+            WORKER_THREADS,
+            60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            task -> {
+                final Thread thread = new Thread(
+                    task,
+                    String.format("pm2p-event-worker-%d", threads.incrementAndGet())
+                );
+                thread.setDaemon(true);
+                return thread;
+            }
+        );
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private void execute(Runnable task) {
+        this.tasks.add(task);
+        this.selector.wakeup();
+    }
+
+    public void register(SocketChannel channel, Client client) {
+        this.execute(() -> {
+            final Connection conn = new Connection(channel, client);
+            try {
+                channel.configureBlocking(false);
+                conn.key = channel.register(this.selector, SelectionKey.OP_READ, conn);
+            } catch (IOException e) {
+                e.printStackTrace();
+                client.close();
+                return;
+            }
+            conn.writer = new PrintStream(new Output(conn), false, StandardCharsets.UTF_8);
+            client.multiplex(conn.writer, conn);
+            this.update(conn);
+        });
+    }
+
+    private void close(Connection conn) {
+        // Clients still handling a line are closed once handled, with the channel closed at once
+        // so that the peer is not kept waiting - any response being streamed is abandoned
+        if (conn.key.isValid()) {
+            conn.key.cancel();
+            conn.discard();
+            conn.input = null;
+            if (conn.inflater != null)
+                conn.inflater.end();
+            if (!conn.handling)
+                conn.client.close();
+            else {
+                try {
+                    conn.channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void read(Connection conn) throws IOException {
+        this.buffer.clear();
+        final int n = conn.channel.read(this.buffer);
+        if (n < 0) {
+            conn.received = false;
+            return;
+        }
+        conn.client.received(n);
+        if (conn.inflater != null)
+            this.inflate(conn, this.buffer.array(), n);
+        else
+            this.append(conn, this.buffer.array(), n);
+    }
+
+    private void startInflating(Connection conn) {
+        // Any bytes received past the line announcing compression are decompressed in place of
+        // the input
+        conn.inflating = false;
+        conn.inflater = new Inflater(true);
+        if (conn.input == null)
+            return;
+        final byte[] remaining = Arrays.copyOfRange(conn.input, conn.start, conn.end);
+        conn.input = null;
+        try {
+            this.inflate(conn, remaining, remaining.length);
+        } catch (IOException e) {
+            conn.received = false;
+            conn.closing = true;
+        }
+    }
+
+    private void inflate(Connection conn, byte[] b, int n) throws IOException {
+        conn.inflater.setInput(b, 0, n);
+        try {
+            int inflated;
+            while ((inflated = conn.inflater.inflate(this.inflated)) > 0)
+                this.append(conn, this.inflated, inflated);
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed compressed input", e);
+        }
+    }
+
+    private void append(Connection conn, byte[] b, int n) {
+        // Unhandled bytes are kept at the start of the input, which grows to fit longer lines
+        if (conn.input == null) {
+            conn.since = System.nanoTime();
+            conn.input = Arrays.copyOf(b, Math.max(n, 256));
+            conn.start = 0;
+            conn.end = n;
+            conn.scanned = 0;
+            return;
+        }
+        if (conn.end + n > conn.input.length) {
+            final int length = conn.end - conn.start;
+            final byte[] input = length + n > conn.input.length ?
+                new byte[Math.max(length + n, 2 * conn.input.length)] : conn.input;
+            System.arraycopy(conn.input, conn.start, input, 0, length);
+            conn.input = input;
+            conn.scanned -= conn.start;
+            conn.start = 0;
+            conn.end = length;
+        }
+        System.arraycopy(b, 0, conn.input, conn.end, n);
+        conn.end += n;
+    }
+
+    private String nextLine(Connection conn) {
+        // Lines end with `\n` or `\r\n`, as accepted by `BufferedReader.readLine` - any bytes left
+        // once the peer stops sending form a final line
+        int i = Math.max(conn.scanned, conn.start);
+        while (i < conn.end && conn.input[i] != '\n')
+            i++;
+        conn.scanned = i;
+        if (i == conn.end && (conn.received || conn.start == conn.end)) {
+            if (conn.start == conn.end)
+                conn.input = null;
+            else if (conn.end - conn.start > MAX_LINE_LENGTH)
+                conn.closing = true;
+            return null;
+        }
+
+        int length = i - conn.start;
+        if (length > 0 && i < conn.end && conn.input[i - 1] == '\r')
+            length--;
+        final String line = new String(conn.input, conn.start, length, StandardCharsets.UTF_8);
+        conn.start = Math.min(i + 1, conn.end);
+        if (conn.start == conn.end)
+            conn.input = null;
+        return line;
+    }
+
+    private void process(Connection conn) {
+        // Lines are handled one at a time, and only while no output is pending, meaning responses
+        // to pipelined requests are produced no faster than the peer reads them
+        if (conn.handling)
+            return;
+        if (conn.streaming) {
+            if (!conn.closing && conn.canResume()) {
+                conn.handling = true;
+                WORKERS.execute(() -> this.resume(conn));
+            }
+            return;
+        }
+        if (!conn.closing && (conn.held != null || conn.input != null) && !conn.hasOutput()) {
+            final String line = conn.held != null ? conn.held : this.nextLine(conn);
+            if (line != null) {
+                final long wait = conn.client.acquire(line);
+                if (wait > 0) {
+                    conn.held = line;
+                    this.defer(conn, wait);
+                    return;
+                }
+                conn.held = null;
+                conn.since = System.nanoTime();
+                conn.handling = true;
+                WORKERS.execute(() -> this.handle(conn, line));
+                return;
+            }
+        }
+        if (!conn.received && conn.input == null && conn.held == null)
+            conn.closing = true;
+    }
+
+    private void handle(Connection conn, String line) {
+        // Run by a worker, handing the connection back to the loop once the line is handled
+        final boolean open = conn.client.handle(line);
+        this.handled(conn, open);
+    }
+
+    private void resume(Connection conn) {
+        // Run by a worker, writing as much more of a streamed response as the limit allows
+        final boolean open = conn.client.resume();
+        this.handled(conn, open);
+    }
+
+    private void handled(Connection conn, boolean open) {
+        // Output is flushed by the worker, leaving the loop to pick the connection back up
+        final boolean streaming = open && conn.client.isStreaming();
+        conn.writer.flush();
+        this.execute(() -> {
+            conn.handling = false;
+            if (!conn.key.isValid()) {
+                conn.client.close();
+                return;
+            }
+            conn.streaming = streaming;
+            if (!open)
+                conn.closing = true;
+            else if (conn.inflating)
+                this.startInflating(conn);
+            this.update(conn);
+        });
+    }
+
+    private void defer(Connection conn, long wait) {
+        if (!conn.isDeferred) {
+            conn.resume = System.nanoTime() + wait;
+            conn.isDeferred = true;
+            this.deferred.add(conn);
+        }
+    }
+
+    private void resumeDeferred() {
+        final long now = System.nanoTime();
+        while (!this.deferred.isEmpty() && this.deferred.peek().resume <= now) {
+            final Connection conn = this.deferred.remove();
+            conn.isDeferred = false;
+            this.update(conn);
+        }
+    }
+
+    private void sweep() {
+        // Silent peers are timed out after the idle timeout, while lines left unfinished and
+        // responses left unread are given the read timeout - peers no longer reading cannot be
+        // asked to leave, so are dropped straight away
+        final long now = System.nanoTime();
+        if (now - this.swept < SWEEP_INTERVAL)
+            return;
+        this.swept = now;
+        for (SelectionKey key : this.selector.keys()) {
+            final Connection conn = (Connection) key.attachment();
+            if (!key.isValid() || conn.held != null || conn.closing)
+                continue;
+            // Lines taking long to handle are left be, unless their output is going unread -
+            // streamed responses leave output pending until resumed, so are timed out likewise
+            if (conn.handling && !conn.hasOutput())
+                continue;
+            final boolean idle = conn.input == null && !conn.hasOutput();
+            final long timeout = idle ? Client.IDLE_TIMEOUT : Client.READ_TIMEOUT;
+            if (timeout <= 0 || now - conn.since < timeout * 1_000_000_000L)
+                continue;
+            if (conn.hasOutput()) {
+                this.close(conn);
+                continue;
+            }
+            conn.client.timeOut();
+            conn.received = false;
+            conn.closing = true;
+            this.update(conn);
+        }
+    }
+
+    private long timeout() {
+        // Milliseconds the selector may wait for before the next sweep or deferred line is due
+        long next = this.swept + SWEEP_INTERVAL;
+        if (!this.deferred.isEmpty())
+            next = Math.min(next, this.deferred.peek().resume);
+        return Math.max((next - System.nanoTime() + 999_999) / 1_000_000, 1);
+    }
+
+    private void drain(Connection conn) {
+        synchronized (conn.output) {
+            try {
+                byte[] chunk;
+                while ((chunk = conn.output.peek()) != null) {
+                    final int limit = chunk == conn.output.peekLast() ?
+                        conn.tail : chunk.length;
+                    final int written = conn.channel.write(
+                        ByteBuffer.wrap(chunk, conn.head, limit - conn.head)
+                    );
+                    if (written > 0) {
+                        conn.since = System.nanoTime();
+                        conn.client.sent(written);
+                        conn.pending -= written;
+                    }
+                    conn.head += written;
+                    if (conn.head < limit)
+                        return;
+                    conn.output.remove();
+                    conn.head = 0;
+                }
+            } catch (IOException e) {
+                conn.discard();
+                conn.received = false;
+                conn.closing = true;
+            }
+        }
+    }
+
+    private void update(Connection conn) {
+        // Drains pending output then handles any lines received in the meantime, only watching
+        // for further input once all output is written and no line is being handled
+        if (!conn.key.isValid())
+            return;
+        this.drain(conn);
+        this.process(conn);
+        if (conn.hasOutput())
+            conn.key.interestOps(SelectionKey.OP_WRITE);
+        else if (conn.closing)
+            this.close(conn);
+        else if (conn.held != null || conn.handling || conn.streaming)
+            conn.key.interestOps(0);
+        else
+            conn.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                this.selector.select(this.timeout());
+                Runnable task;
+                while ((task = this.tasks.poll()) != null) {
+                    // A failing task only concerns its own connection, so the loop carries on
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+
+                for (SelectionKey key : this.selector.selectedKeys()) {
+                    final Connection conn = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable())
+                            this.read(conn);
+                    } catch (IOException e) {
+                        // Connections reset by the peer are closed as though it stopped sending
+                        conn.received = false;
+                        conn.input = null;
+                    }
+                    try {
+                        this.update(conn);
+                    } catch (RuntimeException e) {
+                        // A failing connection is closed without affecting the rest of the loop, so
+                        // its channel and client are released as when the peer disconnects
+                        e.printStackTrace();
+                        this.close(conn);
+                    }
+                }
+                this.selector.selectedKeys().clear();
+                this.resumeDeferred();
+                this.sweep();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+
+package dev.m1younis.controller;
+
+import java.util.Arrays;
+
+/**
+ * A thread-safe index over the hashes of every stored message, finding those starting with a given
+ * prefix so that messages may be addressed by abbreviated hashes.
+ *
+ * <p>
+ * Sums are held as raw bytes, four longs each, in a single sorted array searched by bisection -
+ * resolving a prefix costs two searches however many hashes are indexed, and never touches the
+ * store. Hashes stored while the app runs are kept in a small sorted buffer of their own, merged
+ * into the main array once full so that each insertion only moves the buffer. Hashes loaded at
+ * startup are appended unsorted, with the whole array sorted once before it is first searched.
+ * </p>
+ */
+public class HashIndex {
+    // Shortest prefix resolved, as shorter ones are almost always ambiguous
+    public static final int MIN_PREFIX = 4;
+
+    private static final int WORDS = 4,
+                      RECENT_SIZE = 4096;
+
+    private long[] sums;
+    private int size = 0,
+              sorted = 0;               // Number of leading sums kept in order
+
+    private final long[] recent = new long[WORDS * RECENT_SIZE];
+    private int recentSize = 0;
+
+    public HashIndex(int expected) {
+        this.sums = new long[WORDS * Math.max(expected, 16)];
+    }
+
+    private static int digit(char c) {
+        if (c >= '0' && c <= '9')
+            return c - '0';
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        return -1;
+    }
+
+    private static long[] parse(String hex, int fill) {
+        // Decodes lowercase hex into a sum, padding digits beyond the end of `hex` with `fill` -
+        // returns `null` for anything that is not a (partial) sum, or short given a negative fill
+        if (hex.length() > 16 * WORDS)
+            return null;
+        final long[] sum = new long[WORDS];
+        for (int i = 0; i < 16 * WORDS; i++) {
+            final int digit = i < hex.length() ? digit(hex.charAt(i)) : fill;
+            if (digit < 0)
+                return null;
+            sum[i >> 4] = sum[i >> 4] << 4 | digit;
+        }
+        return sum;
+    }
+
+    private static int compare(long[] a, int i, long[] b, int j) {
+        // Sums are ordered as their hex strings would be
+        for (int w = 0; w < WORDS; w++) {
+            final int c = Long.compareUnsigned(a[WORDS * i + w], b[WORDS * j + w]);
+            if (c != 0)
+                return c;
+        }
+        return 0;
+    }
+
+    private static int search(long[] sums, int size, long[] key, boolean after) {
+        // Returns the first position whose sum is not below `key` (or above it given `after`)
+        int low = 0,
+           high = size;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            final int c = compare(sums, mid, key, 0);
+            if (c < 0 || (after && c == 0))
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private static void swap(long[] sums, int i, int j) {
+        for (int w = 0; w < WORDS; w++) {
+            final long t = sums[WORDS * i + w];
+            sums[WORDS * i + w] = sums[WORDS * j + w];
+            sums[WORDS * j + w] = t;
+        }
+    }
+
+    private static void sort(long[] sums, int from, int to) {
+        // Quicksort over whole sums, recursing into the smaller side only - sums are uniformly
+        // distributed, so the middle sum makes a good pivot
+        while (to - from > 1) {
+            swap(sums, from, (from + to) >>> 1);
+            int last = from;
+            for (int i = from + 1; i < to; i++) {
+                if (compare(sums, i, sums, from) < 0)
+                    swap(sums, ++last, i);
+            }
+            swap(sums, from, last);
+            if (last - from < to - last) {
+                sort(sums, from, last);
+                from = last + 1;
+            } else {
+                sort(sums, last + 1, to);
+                to = last;
+            }
+        }
+    }
+
+    private void ensureSorted() {
+        if (this.sorted < this.size) {
+            sort(this.sums, 0, this.size);
+            this.sorted = this.size;
+        }
+    }
+
+    public synchronized void load(String hash) {
+        // Appends a hash known not to be indexed yet, as when loading stored hashes at startup
+        final long[] sum = parse(hash, -1);
+        if (sum == null)
+            return;
+        if (WORDS * this.size == this.sums.length)
+            this.sums = Arrays.copyOf(this.sums, 2 * this.sums.length);
+        System.arraycopy(sum, 0, this.sums, WORDS * this.size++, WORDS);
+    }
+
+    public synchronized void add(String hash) {
+        // Hashes already indexed (and anything not a full sum) are ignored
+        final long[] sum = parse(hash, -1);
+        if (sum == null)
+            return;
+        this.ensureSorted();
+        final int i = search(this.sums, this.size, sum, false);
+        if (i < this.size && compare(this.sums, i, sum, 0) == 0)
+            return;
+        final int j = search(this.recent, this.recentSize, sum, false);
+        if (j < this.recentSize && compare(this.recent, j, sum, 0) == 0)
+            return;
+
+        System.arraycopy(
+            this.recent,
+            WORDS * j,
+            this.recent,
+            WORDS * (j + 1),
+            WORDS * (this.recentSize - j)
+        );
+        System.arraycopy(sum, 0, this.recent, WORDS * j, WORDS);
+        if (++this.recentSize == RECENT_SIZE)
+            this.merge();
+    }
+
+    private void merge() {
+        // Merges the recent buffer into the main array from the back, growing it as needed
+        final int total = this.size + this.recentSize;
+        if (WORDS * total > this.sums.length)
+            this.sums = Arrays.copyOf(this.sums, WORDS * Math.max(total, 2 * this.size));
+        int i = this.size - 1,
+            j = this.recentSize - 1;
+        for (int k = total - 1; j >= 0; k--) {
+            if (i >= 0 && compare(this.sums, i, this.recent, j) > 0)
+                System.arraycopy(this.sums, WORDS * i--, this.sums, WORDS * k, WORDS);
+            else
+                System.arraycopy(this.recent, WORDS * j--, this.sums, WORDS * k, WORDS);
+        }
+        this.size = this.sorted = total;
+        this.recentSize = 0;
+    }
+
+    private static void collect(long[] sums, int from, int to, String[] found, int[] count) {
+        for (int i = from; i < to && count[0] < found.length; i++) {
+            final StringBuilder sb = new StringBuilder(16 * WORDS);
+            for (int w = 0; w < WORDS; w++) {
+                final String word = Long.toHexString(sums[WORDS * i + w]);
+                sb.append("0".repeat(16 - word.length())).append(word);
+            }
+            found[count[0]++] = sb.toString();
+        }
+    }
+
+    public synchronized String[] find(String prefix, int limit) {
+        // Returns up to `limit` indexed hashes starting with the prefix - prefixes shorter than
+        // `MIN_PREFIX` or holding anything but lowercase hex match nothing
+        final long[] low = parse(prefix, 0x0),
+                    high = parse(prefix, 0xf);
+        if (prefix.length() < MIN_PREFIX || low == null || high == null)
+            return new String[0];
+        this.ensureSorted();
+
+        final String[] found = new String[limit];
+        final int[] count = {0};
+        collect(
+            this.sums,
+            search(this.sums, this.size, low, false),
+            search(this.sums, this.size, high, true),
+            found,
+            count
+        );
+        collect(
+            this.recent,
+            search(this.recent, this.recentSize, low, false),
+            search(this.recent, this.recentSize, high, true),
+            found,
+            count
+        );
+        return Arrays.copyOf(found, count[0]);
+    }
+}
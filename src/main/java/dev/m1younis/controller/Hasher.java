@@ -0,0 +1,75 @@
+
+package dev.m1younis.controller;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A utility class computing the SHA-256 sums identifying message objects, as lowercase hex.
+ *
+ * <p>
+ * Each thread reuses its own digest rather than looking one up for every sum, while digests are
+ * hex-encoded through a lookup table. Hashes are held by messages as raw sums, so received messages
+ * are verified by comparing sums without encoding them at all.
+ * </p>
+ */
+public class Hasher {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    });
+
+    public static byte[] digest(String body) {
+        // `digest` resets the thread's digest, leaving it ready for the next sum
+        return DIGESTS.get().digest(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static MessageDigest getDigest() {
+        // The thread's digest for sums fed in parts, reset by the caller's closing `digest` call
+        return DIGESTS.get();
+    }
+
+    public static String toHex(byte[] bytes) {
+        final char[] hex = new char[2 * bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    public static String sha256(String body) {
+        return toHex(digest(body));
+    }
+
+    private static int fromHexDigit(char c) {
+        // Only lowercase digits are accepted, so that decoded sums are encoded back as given
+        if (c >= '0' && c <= '9')
+            return c - '0';
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        return -1;
+    }
+
+    public static byte[] fromHex(String hash) {
+        // Decodes a SHA-256 sum as given by a peer, returning `null` for anything else
+        if (hash == null || hash.length() != 64)
+            return null;
+        final byte[] bytes = new byte[32];
+        for (int i = 0; i < bytes.length; i++) {
+            final int high = fromHexDigit(hash.charAt(2 * i)),
+                       low = fromHexDigit(hash.charAt(2 * i + 1));
+            if (high < 0 || low < 0)
+                return null;
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,166 @@
+
+package dev.m1younis.controller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A reader splitting a peer connection's input into lines, which can start decompressing the
+ * input part way through.
+ *
+ * <p>
+ * Lines end with `\n` or `\r\n` as accepted by `BufferedReader.readLine`. Unlike a
+ * `BufferedReader`, bytes read ahead of the current line are kept undecoded, so those following
+ * the line after which the connected party starts compressing its output can still be inflated.
+ * </p>
+ *
+ * <p>
+ * Reading from a socket can be limited in time, both while waiting for a line to begin and while
+ * receiving the rest of one, so that parties sending too slowly are timed out regardless of how
+ * their bytes are spread out.
+ * </p>
+ */
+public class LineReader {
+    // Longest line accepted from the connected party, whether served by its own thread or an event
+    // loop - longer lines fail the connection rather than being buffered without bound
+    public static final int MAX_LINE_LENGTH = 1 << 20;
+
+    private static final int BUFFER_SIZE = 1 << 13;
+
+    private final InputStream in;
+    private Socket socket = null;
+    private int idleTimeout = 0,        // Milliseconds allowed between lines, `0` for no limit
+                readTimeout = 0;        // Milliseconds allowed to complete a line once begun
+    private long deadline = 0;
+    private Inflater inflater = null;
+    private byte[] compressed = null;
+
+    // Bytes read (and decompressed where necessary) but not yet returned as lines
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int start = 0,
+                  end = 0;
+
+    public LineReader(InputStream in) {
+        this.in = in;
+    }
+
+    public LineReader(InputStream in, Socket socket, int idleTimeout, int readTimeout) {
+        // Reads from `in` (the socket's input, possibly wrapped), timing out through `socket`
+        this(in);
+        this.socket = socket;
+        this.idleTimeout = Math.max(idleTimeout, 0);
+        this.readTimeout = Math.max(readTimeout, 0);
+    }
+
+    private void read() throws IOException {
+        // Socket reads wait for no longer than the time left to complete the current line, which
+        // is counted from the first of its bytes - `SocketTimeoutException` is thrown otherwise
+        if (this.socket == null)
+            return;
+        if (this.start == this.end || this.readTimeout == 0) {
+            this.socket.setSoTimeout(this.idleTimeout);
+            return;
+        }
+        final long now = System.nanoTime();
+        if (this.deadline == 0)
+            this.deadline = now + this.readTimeout * 1_000_000L;
+        this.socket.setSoTimeout((int) Math.max((this.deadline - now) / 1_000_000, 1));
+    }
+
+    public void inflate() {
+        // Every byte following the line last returned is decompressed from now on
+        this.inflater = new Inflater(true);
+        this.compressed = new byte[BUFFER_SIZE];
+        this.inflater.setInput(Arrays.copyOfRange(this.buffer, this.start, this.end));
+        this.start = 0;
+        this.end = 0;
+    }
+
+    private int fill() throws IOException {
+        // Makes room at the end of the buffer, growing it for lines longer than its size up to
+        // the longest line allowed (and its line ending), then reads as many bytes as are
+        // available - returns `-1` once the input has ended
+        if (this.start > 0) {
+            System.arraycopy(this.buffer, this.start, this.buffer, 0, this.end - this.start);
+            this.end -= this.start;
+            this.start = 0;
+        }
+        if (this.end == this.buffer.length) {
+            if (this.buffer.length >= MAX_LINE_LENGTH + 2)
+                throw new IOException(String.format("Line exceeds %d bytes", MAX_LINE_LENGTH));
+            this.buffer = Arrays.copyOf(
+                this.buffer,
+                Math.min(2 * this.buffer.length, MAX_LINE_LENGTH + 2)
+            );
+        }
+
+        if (this.inflater == null) {
+            this.read();
+            return this.in.read(this.buffer, this.end, this.buffer.length - this.end);
+        }
+        try {
+            while (true) {
+                final int n =
+                    this.inflater.inflate(this.buffer, this.end, this.buffer.length - this.end);
+                if (n > 0)
+                    return n;
+                if (this.inflater.finished())
+                    return -1;
+                this.read();
+                final int read = this.in.read(this.compressed);
+                if (read < 0)
+                    return -1;
+                this.inflater.setInput(this.compressed, 0, read);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed compressed input", e);
+        }
+    }
+
+    public String readLine() throws IOException {
+        // Returns `null` once the input has ended, with any bytes left forming a final line
+        int i = this.start;
+        while (true) {
+            while (i < this.end && this.buffer[i] != '\n')
+                i++;
+            if (i < this.end)
+                break;
+
+            final int scanned = i - this.start;
+            final int n = this.fill();
+            i = this.start + scanned;
+            if (n < 0) {
+                if (this.start == this.end)
+                    return null;
+                final String line = new String(
+                    this.buffer,
+                    this.start,
+                    this.end - this.start,
+                    StandardCharsets.UTF_8
+                );
+                this.start = this.end;
+                return line;
+            }
+            this.end += n;
+        }
+
+        int length = i - this.start;
+        if (length > 0 && this.buffer[i - 1] == '\r')
+            length--;
+        final String line = new String(this.buffer, this.start, length, StandardCharsets.UTF_8);
+        this.start = i + 1;
+        this.deadline = 0;
+        return line;
+    }
+
+    public void close() throws IOException {
+        if (this.inflater != null)
+            this.inflater.end();
+        this.in.close();
+    }
+}
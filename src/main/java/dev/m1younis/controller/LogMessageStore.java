@@ -0,0 +1,619 @@
+
+package dev.m1younis.controller;
+
+import dev.m1younis.model.Message;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * A pure-Java message store suited to write-heavy nodes, appending messages to segment files.
+ *
+ * <p>
+ * Each message is written once as a record at the end of the active segment and never modified,
+ * which suits the immutable, content-addressed message set. Records are located through a
+ * memory-mapped, open-addressing hash table keyed by raw SHA-256 sums, while an in-memory set
+ * ordered by creation time serves range queries.
+ * </p>
+ *
+ * <p>
+ * Segments are synced once per batch of appended messages. The index itself is only flushed when
+ * the store is closed, so it is rebuilt from the segments should the previous session not have
+ * ended cleanly - each record carries a checksum, so that a segment left with a torn or zero-filled
+ * tail is truncated at its first damaged record rather than having it indexed.
+ * </p>
+ */
+public class LogMessageStore implements MessageStore {
+    private static final long SEGMENT_SIZE = Long.getLong("pm2p.log.segment.bytes", 64L << 20);
+
+    // Record layout: payload length, CRC-32C of everything following it, created, raw hash, then
+    // the message body in UTF-8
+    private static final int HASH_SIZE = 32,
+                  RECORD_CREATED_OFFSET = 2 * Integer.BYTES,
+                     RECORD_HASH_OFFSET = RECORD_CREATED_OFFSET + Long.BYTES,
+                     RECORD_HEADER_SIZE = RECORD_HASH_OFFSET + HASH_SIZE;
+
+    // Index layout: a header followed by slots of raw hash, location (offset by one so that zero
+    // marks an empty slot) and created - slots are mapped in regions of up to 2^24 (768 MiB), as a
+    // single mapping cannot exceed 2 GiB
+    private static final int INDEX_MAGIC = 0x504d3250,
+                       INDEX_HEADER_SIZE = 64,
+                         INDEX_SLOT_SIZE = HASH_SIZE + 2 * Long.BYTES,
+                  INDEX_INITIAL_CAPACITY = 1 << 16,
+                       INDEX_REGION_BITS = 24;
+    private static final double INDEX_MAX_LOAD = 0.7;
+
+    // Locations pack the segment number above a 40-bit offset within it
+    private static final int LOCATION_OFFSET_BITS = 40;
+
+    // An entry within the creation-ordered set of stored messages
+    private static class Position {
+        private final long created,
+                           location;
+        private final byte[] hash;
+
+        private Position(long created, long location, byte[] hash) {
+            this.created = created;
+            this.location = location;
+            this.hash = hash;
+        }
+    }
+
+    private static final Comparator<Position> POSITION_ORDER = Comparator
+        .comparingLong((Position p) -> p.created)
+        .thenComparingLong(p -> p.location);
+
+    private final Path directory;
+    private final List<FileChannel> segments = new CopyOnWriteArrayList<>();
+    private long activeSize;
+
+    private final Path indexPath;
+    private FileChannel indexChannel;
+    private MappedByteBuffer indexHeader;
+    private MappedByteBuffer[] indexRegions;
+    private long capacity,
+                 count;
+
+    // Guards the index and positions - segment reads are positional and need no locking
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ConcurrentSkipListSet<Position> positions =
+        new ConcurrentSkipListSet<>(POSITION_ORDER);
+    private volatile long lastLocation = -1;         // Location of the latest indexed record
+
+    private final MessageWriter writer;
+
+    // Sync watermarks per peer, rewritten in full whenever one advances as they change rarely
+    private final Path watermarksPath;
+    private final Map<String, Long> watermarks = new ConcurrentHashMap<>();
+
+    public LogMessageStore(Path directory) throws IOException {
+        this.directory = directory;
+        this.indexPath = directory.resolve("index.dat");
+        this.watermarksPath = directory.resolve("watermarks.properties");
+        Files.createDirectories(directory);
+
+        if (Files.exists(this.watermarksPath)) {
+            final Properties stored = new Properties();
+            try (InputStream in = Files.newInputStream(this.watermarksPath)) {
+                stored.load(in);
+            }
+            for (String peer : stored.stringPropertyNames())
+                this.watermarks.put(peer, Long.parseLong(stored.getProperty(peer)));
+        }
+
+        // Existing segments are opened in order, with appends continuing from the last
+        try (Stream<Path> files = Files.list(directory)) {
+            final Path[] paths = files
+                .filter(p -> p.getFileName().toString().matches("segment-\\d{8}\\.log"))
+                .sorted()
+                .toArray(Path[]::new);
+            for (Path path : paths) {
+                this.segments.add(FileChannel.open(
+                    path,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE
+                ));
+            }
+        }
+        if (this.segments.isEmpty())
+            this.roll();
+        this.activeSize = this.active().size();
+
+        if (!this.openIndex())
+            this.rebuildIndex();
+
+        // The index is marked as in use until closed cleanly
+        this.indexHeader.putInt(Integer.BYTES, 0);
+        this.indexHeader.force();
+
+        this.writer = new MessageWriter(
+            this::append,
+            Integer.getInteger("pm2p.writer.batch", 256),
+            Long.getLong("pm2p.writer.delay", 10)
+        );
+    }
+
+    private static byte[] decodeHash(String hash) {
+        // Returns `null` given the hash is not a valid SHA-256 sum in hex
+        if (hash == null || hash.length() != 2 * HASH_SIZE)
+            return null;
+
+        final byte[] raw = new byte[HASH_SIZE];
+        for (int i = 0; i < HASH_SIZE; i++) {
+            final int hi = Character.digit(hash.charAt(2 * i), 16),
+                      lo = Character.digit(hash.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0)
+                return null;
+            raw[i] = (byte) (hi << 4 | lo);
+        }
+        return raw;
+    }
+
+    private static String encodeHash(byte[] raw) {
+        final StringBuilder sb = new StringBuilder(2 * HASH_SIZE);
+        for (byte b : raw) {
+            sb.append(Character.forDigit(b >> 4 & 0xf, 16))
+                .append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private FileChannel active() {
+        return this.segments.get(this.segments.size() - 1);
+    }
+
+    private void roll() throws IOException {
+        this.segments.add(FileChannel.open(
+            this.directory.resolve(String.format("segment-%08d.log", this.segments.size())),
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE
+        ));
+        this.activeSize = 0;
+    }
+
+    private static MappedByteBuffer[] mapRegions(FileChannel channel, long capacity)
+        throws IOException {
+        // Capacities are powers of two, so divide evenly into regions
+        final long slots = Math.min(capacity, 1L << INDEX_REGION_BITS);
+        final MappedByteBuffer[] regions = new MappedByteBuffer[(int) (capacity / slots)];
+        for (int r = 0; r < regions.length; r++) {
+            regions[r] = channel.map(
+                FileChannel.MapMode.READ_WRITE,
+                INDEX_HEADER_SIZE + r * slots * INDEX_SLOT_SIZE,
+                slots * INDEX_SLOT_SIZE
+            );
+        }
+        return regions;
+    }
+
+    private MappedByteBuffer region(long slot) {
+        return this.indexRegions[(int) (slot >>> INDEX_REGION_BITS)];
+    }
+
+    private static int base(long slot) {
+        // Position of the slot within its region
+        return (int) ((slot & ((1L << INDEX_REGION_BITS) - 1)) * INDEX_SLOT_SIZE);
+    }
+
+    private boolean openIndex() throws IOException {
+        // Reuses the persisted index given it was closed cleanly, returning `false` otherwise
+        if (!Files.exists(this.indexPath))
+            return false;
+
+        this.indexChannel = FileChannel.open(
+            this.indexPath,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE
+        );
+        if (this.indexChannel.size() < INDEX_HEADER_SIZE)
+            return false;
+
+        final ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+        this.indexChannel.read(header, 0);
+        if (header.getInt(0) != INDEX_MAGIC || header.getInt(Integer.BYTES) != 1)
+            return false;
+
+        this.capacity = header.getLong(8);
+        this.count = header.getLong(16);
+        if (Long.bitCount(this.capacity) != 1
+            || this.indexChannel.size() != INDEX_HEADER_SIZE + this.capacity * INDEX_SLOT_SIZE)
+            return false;
+        this.indexRegions = mapRegions(this.indexChannel, this.capacity);
+        this.indexHeader =
+            this.indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_SIZE);
+
+        // Creation-ordered positions are restored from the occupied slots
+        for (long slot = 0; slot < this.capacity; slot++) {
+            final MappedByteBuffer region = this.region(slot);
+            final int base = base(slot);
+            final long location = region.getLong(base + HASH_SIZE);
+            if (location != 0) {
+                final byte[] hash = new byte[HASH_SIZE];
+                for (int i = 0; i < HASH_SIZE; i++)
+                    hash[i] = region.get(base + i);
+                this.positions.add(new Position(
+                    region.getLong(base + HASH_SIZE + Long.BYTES),
+                    location - 1,
+                    hash
+                ));
+                this.lastLocation = Math.max(this.lastLocation, location - 1);
+            }
+        }
+        return true;
+    }
+
+    private void createIndex(long capacity) throws IOException {
+        // A fresh, empty index is written alongside the current one before replacing it
+        final Path tmp = this.directory.resolve("index.tmp");
+        Files.deleteIfExists(tmp);
+        final FileChannel channel = FileChannel.open(
+            tmp,
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE
+        );
+        final MappedByteBuffer[] regions = mapRegions(channel, capacity);
+        final MappedByteBuffer header = channel.map(
+            FileChannel.MapMode.READ_WRITE,
+            0,
+            INDEX_HEADER_SIZE
+        );
+        header.putInt(0, INDEX_MAGIC);
+        header.putLong(8, capacity);
+
+        if (this.indexChannel != null)
+            this.indexChannel.close();
+        Files.move(
+            tmp,
+            this.indexPath,
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE
+        );
+        this.indexChannel = channel;
+        this.indexHeader = header;
+        this.indexRegions = regions;
+        this.capacity = capacity;
+        this.count = 0;
+    }
+
+    private static int checksum(ByteBuffer record) {
+        // Covers everything following the length and checksum, whose length is checked apart
+        final CRC32C crc = new CRC32C();
+        crc.update(record.duplicate().position(RECORD_CREATED_OFFSET));
+        return (int) crc.getValue();
+    }
+
+    private void rebuildIndex() throws IOException {
+        // Every record in every segment is replayed into a new index - a record cut short or
+        // damaged by a crash marks the end of its segment, which is truncated accordingly
+        System.out.printf("Rebuilding message index at `%s`...\n", this.indexPath);
+        this.positions.clear();
+        this.createIndex(INDEX_INITIAL_CAPACITY);
+
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        for (int segment = 0; segment < this.segments.size(); segment++) {
+            final FileChannel channel = this.segments.get(segment);
+            final long size = channel.size();
+            long offset = 0;
+            while (offset + RECORD_HEADER_SIZE <= size) {
+                header.clear();
+                channel.read(header, offset);
+                final int length = header.getInt(0);
+                if (length <= 0 || offset + RECORD_HEADER_SIZE + length > size)
+                    break;
+                final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+                while (record.hasRemaining())
+                    channel.read(record, offset + record.position());
+                if (checksum(record) != header.getInt(Integer.BYTES))
+                    break;
+
+                final byte[] hash = Arrays.copyOfRange(
+                    header.array(),
+                    RECORD_HASH_OFFSET,
+                    RECORD_HASH_OFFSET + HASH_SIZE
+                );
+                final long location = (long) segment << LOCATION_OFFSET_BITS | offset;
+                if (this.find(hash) < 0)
+                    this.insert(hash, location, header.getLong(RECORD_CREATED_OFFSET));
+                offset += RECORD_HEADER_SIZE + length;
+            }
+            if (offset != size)
+                channel.truncate(offset);
+        }
+        this.activeSize = this.active().size();
+    }
+
+    private long slotOf(byte[] hash) {
+        // SHA-256 sums are uniformly distributed, so their leading bytes serve as the slot hash
+        return ByteBuffer.wrap(hash).getLong() & (this.capacity - 1);
+    }
+
+    private long find(byte[] hash) {
+        // Linear probing from the hash's home slot until it or an empty slot is found
+        for (long slot = this.slotOf(hash); ; slot = (slot + 1) & (this.capacity - 1)) {
+            final MappedByteBuffer region = this.region(slot);
+            final int base = base(slot);
+            if (region.getLong(base + HASH_SIZE) == 0)
+                return -1;
+
+            boolean equal = true;
+            for (int i = 0; i < HASH_SIZE && equal; i++)
+                equal = region.get(base + i) == hash[i];
+            if (equal)
+                return region.getLong(base + HASH_SIZE) - 1;
+        }
+    }
+
+    private void insertSlot(byte[] hash, long location, long created) {
+        long slot = this.slotOf(hash);
+        while (this.region(slot).getLong(base(slot) + HASH_SIZE) != 0)
+            slot = (slot + 1) & (this.capacity - 1);
+        final MappedByteBuffer region = this.region(slot);
+        final int base = base(slot);
+        for (int i = 0; i < HASH_SIZE; i++)
+            region.put(base + i, hash[i]);
+        region.putLong(base + HASH_SIZE, location + 1);
+        region.putLong(base + HASH_SIZE + Long.BYTES, created);
+        this.indexHeader.putLong(16, ++this.count);
+    }
+
+    private void insert(byte[] hash, long location, long created) throws IOException {
+        // The index doubles in size once its load factor is exceeded, being refilled from the
+        // positions already held in memory
+        if (this.count + 1 > this.capacity * INDEX_MAX_LOAD) {
+            this.createIndex(this.capacity * 2);
+            for (Position position : this.positions)
+                this.insertSlot(position.hash, position.location, position.created);
+        }
+        this.insertSlot(hash, location, created);
+        this.positions.add(new Position(created, location, hash));
+        this.lastLocation = Math.max(this.lastLocation, location);
+    }
+
+    private void append(List<Message> batch) throws IOException {
+        // Runs on the writer thread only - records are appended and synced before being indexed,
+        // so readers never observe an index entry without its record
+        final List<Position> appended = new ArrayList<>(batch.size());
+        final Set<String> seen = new HashSet<>();
+        for (Message message : batch) {
+            final byte[] hash = decodeHash(message.getHash());
+            if (hash == null || !seen.add(message.getHash()) || this.exists(message.getHash()))
+                continue;
+
+            final byte[] body = message.toString().getBytes(StandardCharsets.UTF_8);
+            if (this.activeSize > 0 && this.activeSize + RECORD_HEADER_SIZE + body.length
+                > SEGMENT_SIZE) {
+                this.active().force(false);
+                this.roll();
+            }
+
+            final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + body.length)
+                .putInt(body.length)
+                .putInt(0)
+                .putLong(message.getCreated())
+                .put(hash)
+                .put(body)
+                .flip();
+            record.putInt(Integer.BYTES, checksum(record));
+            final long location =
+                (long) (this.segments.size() - 1) << LOCATION_OFFSET_BITS | this.activeSize;
+            while (record.hasRemaining())
+                this.activeSize += this.active().write(record, this.activeSize);
+            appended.add(new Position(message.getCreated(), location, hash));
+        }
+        if (appended.isEmpty())
+            return;
+        this.active().force(false);
+
+        this.lock.writeLock().lock();
+        try {
+            for (Position position : appended)
+                this.insert(position.hash, position.location, position.created);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private byte[] readBody(long location) throws IOException {
+        final FileChannel channel = this.segments.get((int) (location >>> LOCATION_OFFSET_BITS));
+        final long offset = location & ((1L << LOCATION_OFFSET_BITS) - 1);
+
+        final ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        channel.read(header, offset);
+        final ByteBuffer body = ByteBuffer.allocate(header.getInt(0));
+        while (body.hasRemaining()) {
+            if (channel.read(body, offset + RECORD_HEADER_SIZE + body.position()) < 0)
+                throw new IOException("Unexpected end of segment");
+        }
+        return body.array();
+    }
+
+    private Message read(long location) {
+        try {
+            return MessageController.parseMessage(
+                new String(this.readBody(location), StandardCharsets.UTF_8)
+            );
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private long locate(String hash) {
+        final byte[] raw = decodeHash(hash);
+        if (raw == null)
+            return -1;
+
+        this.lock.readLock().lock();
+        try {
+            return this.find(raw);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> put(Message message) {
+        if (decodeHash(message.getHash()) == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException(
+                String.format("Invalid message hash `%s`", message.getHash())
+            ));
+        }
+        return this.writer.submit(message);
+    }
+
+    @Override
+    public Message get(String hash) {
+        final long location = this.locate(hash);
+        return location < 0 ? null : this.read(location);
+    }
+
+    @Override
+    public boolean exists(String hash) {
+        return this.locate(hash) >= 0;
+    }
+
+    private boolean matches(Position position, String content) throws IOException {
+        // Bodies are stored exactly as `Message.toString` produces them, so content filters are
+        // applied to them directly
+        return content == null
+            || new String(this.readBody(position.location), StandardCharsets.UTF_8)
+                .contains(content);
+    }
+
+    @Override
+    public RangeCursor range(long since, String content) throws IOException {
+        // Locations only ever increase as records are appended, so limiting both the count and
+        // the cursor to those indexed beforehand yields a consistent snapshot - time-only queries
+        // are answered from memory, whereas content filters read each record in range
+        final long snapshot = this.lastLocation;
+        final Position from = new Position(since, Long.MIN_VALUE, null);
+
+        int count = 0;
+        for (Position position : this.positions.tailSet(from)) {
+            if (position.location <= snapshot && this.matches(position, content))
+                count++;
+        }
+
+        final int matches = count;
+        final Iterator<Position> positions = this.positions.tailSet(from).iterator();
+        return new RangeCursor() {
+            private int taken = 0;
+
+            @Override
+            public int count() {
+                return matches;
+            }
+
+            @Override
+            public String next() throws IOException {
+                while (this.taken < matches && positions.hasNext()) {
+                    final Position position = positions.next();
+                    if (position.location <= snapshot
+                        && LogMessageStore.this.matches(position, content)) {
+                        this.taken++;
+                        return encodeHash(position.hash);
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    @Override
+    public void forEach(long since, long until, Predicate<Message> visitor) {
+        final Position from = new Position(since, Long.MIN_VALUE, null),
+                         to = new Position(until, Long.MAX_VALUE, null);
+        for (Position position : this.positions.subSet(from, true, to, true)) {
+            final Message message = this.read(position.location);
+            if (message != null && !visitor.test(message))
+                break;
+        }
+    }
+
+    @Override
+    public void forEachRecent(Predicate<Message> visitor) {
+        for (Position position : this.positions.descendingSet()) {
+            final Message message = this.read(position.location);
+            if (message != null && !visitor.test(message))
+                break;
+        }
+    }
+
+    @Override
+    public long getWatermark(String peer) {
+        return this.watermarks.getOrDefault(peer, 0L);
+    }
+
+    @Override
+    public synchronized void setWatermark(String peer, long created) {
+        // Written to a temporary file first, so that a crash never leaves the file partly written
+        if (this.watermarks.merge(peer, created, Math::max) != created)
+            return;
+        final Properties stored = new Properties();
+        this.watermarks.forEach((p, c) -> stored.setProperty(p, Long.toString(c)));
+        final Path temporary = this.directory.resolve("watermarks.properties.tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                stored.store(out, null);
+            }
+            Files.move(
+                temporary,
+                this.watermarksPath,
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE
+            );
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void close() {
+        // Pending appends are written before the index is flushed and marked as cleanly closed
+        this.writer.close();
+        this.lock.writeLock().lock();
+        try {
+            for (FileChannel segment : this.segments) {
+                segment.force(true);
+                segment.close();
+            }
+            for (MappedByteBuffer region : this.indexRegions)
+                region.force();
+            this.indexHeader.putInt(Integer.BYTES, 1);
+            this.indexHeader.force();
+            this.indexChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+}
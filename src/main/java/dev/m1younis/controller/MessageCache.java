@@ -0,0 +1,120 @@
+
+package dev.m1younis.controller;
+
+import dev.m1younis.model.Message;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread-safe, memory-bounded store of recently used message objects kept in front of the
+ * database.
+ *
+ * <p>
+ * Entries are held in access order, meaning the least recently used messages are evicted first
+ * once the estimated footprint of all cached messages exceeds the configured capacity.
+ * </p>
+ */
+public class MessageCache {
+    // Approximate JVM overheads (in bytes) used when estimating message footprints
+    private static final int OBJECT_OVERHEAD = 16,
+                             STRING_OVERHEAD = 40,
+                              ENTRY_OVERHEAD = 64,
+                                   HASH_SIZE = 64;
+
+    private final long capacity;         // Maximum estimated footprint in bytes
+    private long size = 0;
+
+    // Access-ordered so iteration starts from the coldest entry, with each footprint recorded as
+    // estimated upon insertion - a message's estimate changes once its contents are loaded or its
+    // response is built, after which it is refreshed
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(1024, 0.75f, true);
+
+    private static class Entry {
+        private final Message message;
+        private final long footprint;
+
+        private Entry(Message message, long footprint) {
+            this.message = message;
+            this.footprint = footprint;
+        }
+    }
+
+    public MessageCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    private static long estimateSize(String value) {
+        return value == null ? 0 : STRING_OVERHEAD + 2L * value.length();
+    }
+
+    public static long estimateSize(Message message) {
+        // Senders, recipients and topics are shared between messages so aren't counted, while the
+        // hash is counted both as the key and as the raw sum held by the message
+        final long size = OBJECT_OVERHEAD + ENTRY_OVERHEAD
+            + STRING_OVERHEAD + 2L * HASH_SIZE
+            + OBJECT_OVERHEAD + HASH_SIZE / 2
+            + estimateSize(message.getSubject())
+            + message.getResponseLength();
+
+        // Contents yet to be loaded are estimated from their length, so that caching a message
+        // never forces its contents to be decompressed
+        if (!message.isLoaded())
+            return size + OBJECT_OVERHEAD + STRING_OVERHEAD + 2L * message.getContentsLength();
+
+        return size + 2 * OBJECT_OVERHEAD + message.getContentsSize();
+    }
+
+    public synchronized Message get(String hash) {
+        final Entry entry = this.entries.get(hash);
+        return entry == null ? null : entry.message;
+    }
+
+    public synchronized boolean contains(String hash) {
+        return this.entries.containsKey(hash);
+    }
+
+    public synchronized boolean isFull() {
+        return this.size >= this.capacity;
+    }
+
+    public synchronized void put(Message message) {
+        final long footprint = estimateSize(message);
+        // Messages larger than the whole cache are never retained, nor left cached as they were
+        if (footprint > this.capacity) {
+            final Entry previous = this.entries.remove(message.getHash());
+            if (previous != null)
+                this.size -= previous.footprint;
+            return;
+        }
+
+        final Entry previous = this.entries.put(message.getHash(), new Entry(message, footprint));
+        if (previous != null)
+            this.size -= previous.footprint;
+        this.size += footprint;
+
+        // Cold entries are evicted until the cache fits within its capacity again
+        final Iterator<Map.Entry<String, Entry>> it = this.entries.entrySet().iterator();
+        while (this.size > this.capacity && it.hasNext()) {
+            this.size -= it.next().getValue().footprint;
+            it.remove();
+        }
+    }
+
+    public synchronized void remove(Message message) {
+        // Drops the message only while cached as the same object, leaving any other copy be
+        final Entry entry = this.entries.get(message.getHash());
+        if (entry != null && entry.message == message) {
+            this.entries.remove(message.getHash());
+            this.size -= entry.footprint;
+        }
+    }
+
+    public synchronized void refresh(Message message) {
+        // Re-estimates a cached message's footprint once it has grown, as when its response is
+        // built - messages no longer cached are left out rather than cached again
+        final Entry entry = this.entries.get(message.getHash());
+        if (entry != null && entry.message == message)
+            this.put(message);
+    }
+}
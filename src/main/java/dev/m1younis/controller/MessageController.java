@@ -1,99 +1,70 @@
 
 package dev.m1younis.controller;
 
+import dev.m1younis.controller.MessageStore.RangeCursor;
 import dev.m1younis.model.Message;
-import java.sql.Connection;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
-import java.util.Arrays;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
 
 /**
  * A class for handling operations on message objects.
  */
 public class MessageController {
-    public static void storeMessage(Message message) {
-        final Connection conn = DatabaseController.connect();
-        try {
-            // Optional message fields are extracted to check for nulls prior to insertion
-            final String recipient = message.getRecipient(),
-                             topic = message.getTopic(),
-                           subject = message.getSubject();
-
-            // `INSERT` query composed by way of a formatted string before being performed
-            final Statement stmt = conn.createStatement();
-            final String query = String.format(
-                "INSERT INTO `messages` (`uid`, `created`, `sender`, `recipient`, `topic`, "
-                + "`subject`, `contents`) VALUES ('%s', '%d', '%s', %s, %s, %s, '%s')",
-                message.getHash(),
-                message.getCreated(),
-                message.getSender(),
-                recipient == null ? "NULL" : String.format("'%s'", recipient),
-                topic == null ? "NULL" : String.format("'%s'", topic),
-                subject == null ? "NULL" : String.format("'%s'", subject),
-                String.join("\n", message.getContents())
-            );
-            stmt.executeUpdate(query);
-        } catch (SQLException e) {
-            e.printStackTrace();
-        } finally {
+    // Storage engine selected at startup - SQLite unless the log-structured store is requested
+    private static final MessageStore STORE = createStore();
+
+    // Shared cache consulted ahead of the store, holding messages from when they are submitted for
+    // storage and bounded by the estimated memory footprint of its messages (64 MiB unless
+    // configured otherwise)
+    private static final MessageCache CACHE =
+        new MessageCache(Long.getLong("pm2p.cache.bytes", 64L << 20));
+
+    // Filter over every stored hash, allowing lookups for absent messages to skip the cache and
+    // store entirely - left unset until built at startup, in which case it is not consulted
+    private static volatile BloomFilter filter = null;
+
+    // Sorted index over every stored hash resolving abbreviated hashes, built alongside the filter
+    // and left unset until then, in which case abbreviated hashes are never resolved
+    private static volatile HashIndex index = null;
+
+    private static MessageStore createStore() {
+        if (System.getProperty("pm2p.store", "sqlite").equalsIgnoreCase("log")) {
             try {
-                if (conn != null)
-                    conn.close();
-            } catch (SQLException e) {
-                e.printStackTrace();
+                return new LogMessageStore(
+                    Path.of(System.getProperty("pm2p.log.dir", "src/main/resources/pm2p.log"))
+                );
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
         }
+        return new SqliteMessageStore();
     }
 
-    public static Message parseMessage(String message) {
-        // Variables declared for each of the stored `Message` object's headers
-        String hash = null,
-             sender = null,
-          recipient = null,
-              topic = null,
-            subject = null;
-        long created = 0;
-        int contents = 0;                // Stores the index at which the message contents begin
-
-        // The text corresponding to the message body is split into individual lines, from which
-        // the following loop identifies each of the present message headers and contents
-        final String[] body = message.split("\n");
-        for (int i = 0; i < body.length; i++) {
-            final String line = body[i];
-            if (line.startsWith("Message-uid: SHA-256")) {
-                final String[] meta = line.split("\\s+");
-                if (meta.length == 3)
-                    hash = meta[2];
-            } else if (line.startsWith("Contents:")) {
-                contents = i + 1;
-                break;
-            } else {
-                final String sub = line.substring(line.indexOf(':') + 2);
-                if (line.startsWith("Created:"))
-                    created = Long.parseLong(sub);
-                else if (line.startsWith("From:"))
-                    sender = sub;
-                else if (line.startsWith("To:"))
-                    recipient = sub;
-                else if (line.startsWith("Topic:"))
-                    topic = sub;
-                else if (line.startsWith("Subject:"))
-                    subject = sub;
-            }
-        }
+    public static CompletableFuture<Void> storeMessage(Message message) {
+        // The message is visible to lookups through the cache immediately, before it is committed,
+        // and dropped from the cache again should the write fail - only the returned future
+        // completing means it has been durably stored
+        final String hash = message.getHash();
+        if (filter != null)
+            filter.add(hash);
+        if (index != null)
+            index.add(hash);
+        CACHE.put(message);
+        return STORE.put(message).whenComplete((stored, e) -> {
+            if (e != null)
+                CACHE.remove(message);
+        });
+    }
 
-        return new Message(
-            hash,
-            sender,
-            recipient,
-            topic,
-            subject,
-            created,
-            Arrays.copyOfRange(body, contents, body.length)
-        );
+    public static Message parseMessage(String message) {
+        // Message headers are identified line by line until the contents, which are taken as the
+        // number of lines given by the `Contents` header
+        return new MessageDecoder(false).decode(message);
     }
 
     public static Map<String, Message> loadStoredMessages() {
@@ -101,34 +72,115 @@ public class MessageController {
         // over its base `HashMap` implementation and random-access counterpart `TreeMap` as
         // entries are chronologically contained or "insertion-ordered"
         final Map<String, Message> messages = new LinkedHashMap<>();
-        final Connection conn = DatabaseController.connect();
+        STORE.forEach(Long.MIN_VALUE, Long.MAX_VALUE, message -> {
+            messages.put(message.getHash(), message);
+            return true;
+        });
+
+        return messages;
+    }
+
+    public static void visitStoredMessages(long since, long until, Predicate<Message> visitor) {
+        // Streams messages created within the range straight from the store, without retaining
+        // them in memory or the cache
+        STORE.forEach(since, until, visitor);
+    }
+
+    public static RangeCursor findMessageHashes(long since, String content) throws IOException {
+        // Resolves `SHOW?` requests within the store, which only visits messages in range and
+        // reads their hashes as they are taken
+        return STORE.range(since, content);
+    }
+
+    public static void buildFilter() {
+        // Registers the hash of every stored message with the filter, sized for twice the current
+        // store with a false-positive rate of 1%, and the hash index in the same pass - must be
+        // invoked before any messages are stored or served
         try {
-            // A `SELECT` query is executed to extract all message records and columns for which a
-            // `ResultSet` object is returned to be iterated over
-            final Statement stmt = conn.createStatement();
-            final ResultSet rs =
-                stmt.executeQuery("SELECT * FROM `messages` ORDER BY `created`");
-
-            // Table rows are mapped to `Message` objects then added within the `Map` container
-            while (rs.next()) {
-                final String hash = rs.getString("uid");
-                messages.put(
-                    hash,
-                    new Message(
-                        hash,
-                        rs.getString("sender"),
-                        rs.getString("recipient"),
-                        rs.getString("topic"),
-                        rs.getString("subject"),
-                        rs.getLong("created"),
-                        rs.getString("contents").split("\n")
-                    )
-                );
+            final RangeCursor hashes = STORE.range(Long.MIN_VALUE, null);
+            final BloomFilter built = new BloomFilter(2L * hashes.count(), 0.01);
+            final HashIndex indexed = new HashIndex(hashes.count());
+            String hash;
+            while ((hash = hashes.next()) != null) {
+                built.add(hash);
+                indexed.load(hash);
             }
-        } catch (SQLException e) {
+            filter = built;
+            index = indexed;
+        } catch (IOException e) {
             e.printStackTrace();
         }
+    }
+
+    public static void warmCache() {
+        // Populates the cache once at startup with the most recently created messages, stopping
+        // as soon as its capacity is reached
+        STORE.forEachRecent(message -> {
+            CACHE.put(message);
+            return !CACHE.isFull();
+        });
+    }
+
+    public static Message getMessage(String hash) {
+        // Hashes ruled out by the filter are never looked up, cached messages are returned
+        // immediately, otherwise the store is queried and its result retained for subsequent
+        // requests
+        if (filter != null && !filter.mightContain(hash))
+            return null;
+
+        Message message = CACHE.get(hash);
+        if (message == null) {
+            message = STORE.get(hash);
+            if (message != null)
+                CACHE.put(message);
+        }
 
-        return messages;
+        return message;
+    }
+
+    public static String[] findHashes(String prefix, int limit) {
+        // Stored hashes starting with the prefix, resolved from the index alone - none are found
+        // before the index is built
+        final HashIndex built = index;
+        return built == null ? new String[0] : built.find(prefix, limit);
+    }
+
+    public static Message findMessage(String prefix) {
+        // Loads the message whose hash is the only one starting with the prefix, if any
+        final String[] found = findHashes(prefix, 2);
+        return found.length == 1 ? getMessage(found[0]) : null;
+    }
+
+    public static byte[] getResponse(Message message) {
+        // Responses are kept with their messages once built, so cached messages are re-estimated
+        // for the response to count towards the cache's capacity
+        final boolean built = message.getResponseLength() > 0;
+        final byte[] response = message.getResponse();
+        if (!built)
+            CACHE.refresh(message);
+        return response;
+    }
+
+    public static boolean hasMessage(String hash) {
+        if (filter != null && !filter.mightContain(hash))
+            return false;
+        return CACHE.contains(hash) || STORE.exists(hash);
+    }
+
+    public static boolean usesDatabase() {
+        return STORE instanceof SqliteMessageStore;
+    }
+
+    public static long getWatermark(String peer) {
+        return STORE.getWatermark(peer);
+    }
+
+    public static void setWatermark(String peer, long created) {
+        STORE.setWatermark(peer, created);
+    }
+
+    public static void shutdown() {
+        // Pending writes are completed by the store before it closes
+        STORE.close();
     }
 }
@@ -0,0 +1,143 @@
+
+package dev.m1younis.controller;
+
+import dev.m1younis.model.Message;
+import java.util.Arrays;
+
+/**
+ * A decoder building message objects from their bodies one line at a time, as lines are read from
+ * a peer's `SUCCESS` response or an archive.
+ *
+ * <p>
+ * Headers are recognised up to the `Contents` header, with any unrecognised headers skipped, after
+ * which exactly as many lines as it gives are taken as the contents whatever text they hold. Lines
+ * loaded from peers are prefixed with `> `, which is only ever removed from the start of each line.
+ * Each decoder holds the message being decoded, so may be reset and reused for the next message
+ * though only by one thread at a time.
+ * </p>
+ */
+public class MessageDecoder {
+    private static final String HASH_HEADER = "Message-uid: SHA-256",
+                            CONTENTS_HEADER = "Contents:";
+
+    private final boolean prefixed;
+
+    private String hash,
+                 sender,
+              recipient,
+                  topic,
+                subject;
+    private long created;
+    // Grown as lines arrive rather than sized by the `Contents` header up front, as the count given
+    // by a peer may be far larger than the lines it goes on to send
+    private String[] contents = new String[16];
+    private int count,                  // Left negative until the `Contents` header is decoded
+                received;
+
+    public MessageDecoder(boolean prefixed) {
+        this.prefixed = prefixed;
+        this.reset();
+    }
+
+    public void reset() {
+        this.hash = null;
+        this.sender = null;
+        this.recipient = null;
+        this.topic = null;
+        this.subject = null;
+        this.created = 0;
+        // Lines of the previous message are released rather than held until overwritten
+        Arrays.fill(this.contents, 0, this.received, null);
+        this.count = -1;
+        this.received = 0;
+    }
+
+    private static String value(String line, int colon) {
+        // Header values follow the colon and a single space
+        return line.substring(Math.min(colon + 2, line.length()));
+    }
+
+    public boolean accept(String line) {
+        // Decodes the next line of the body, returning `true` once the message is complete - lines
+        // given afterwards are ignored, while malformed numeric headers throw
+        // `NumberFormatException`
+        if (this.isComplete())
+            return true;
+        final int start = this.prefixed && line.startsWith("> ") ? 2 : 0;
+
+        if (this.count >= 0) {
+            if (this.received == this.contents.length)
+                this.contents = Arrays.copyOf(this.contents, 2 * this.received);
+            this.contents[this.received++] = start == 0 ? line : line.substring(start);
+        } else if (line.startsWith(HASH_HEADER, start)) {
+            final String hash = line.substring(start + HASH_HEADER.length()).strip();
+            if (!hash.isEmpty() && hash.chars().noneMatch(Character::isWhitespace))
+                this.hash = hash;
+        } else if (line.startsWith(CONTENTS_HEADER, start)) {
+            final int count = Integer.parseInt(
+                line.substring(start + CONTENTS_HEADER.length()).strip()
+            );
+            if (count < 0)
+                throw new NumberFormatException(String.format("Invalid contents count %d", count));
+            this.count = count;
+        } else {
+            final int colon = line.indexOf(':', start);
+            if (colon >= 0) {
+                if (line.startsWith("Created:", start))
+                    this.created = Long.parseLong(value(line, colon));
+                else if (line.startsWith("From:", start))
+                    this.sender = value(line, colon);
+                else if (line.startsWith("To:", start))
+                    this.recipient = value(line, colon);
+                else if (line.startsWith("Topic:", start))
+                    this.topic = value(line, colon);
+                else if (line.startsWith("Subject:", start))
+                    this.subject = value(line, colon);
+            }
+        }
+
+        return this.isComplete();
+    }
+
+    public boolean isComplete() {
+        return this.received == this.count;
+    }
+
+    public boolean hasContentsHeader() {
+        return this.count >= 0;
+    }
+
+    public String getHash() {
+        return this.hash;
+    }
+
+    public Message decode(String body) {
+        // Decodes a whole body held in memory, taking its lines in place rather than splitting it
+        this.reset();
+        int start = 0;
+        while (start < body.length()) {
+            int end = body.indexOf('\n', start);
+            if (end < 0)
+                end = body.length();
+            if (this.accept(body.substring(start, end)))
+                break;
+            start = end + 1;
+        }
+        return this.getMessage();
+    }
+
+    public Message getMessage() {
+        // Messages whose bodies end early are built from the contents received so far - the lines
+        // are copied out, leaving the decoder free to be reused
+        final String[] contents = Arrays.copyOf(this.contents, this.received);
+        return new Message(
+            this.hash,
+            this.sender,
+            this.recipient,
+            this.topic,
+            this.subject,
+            this.created,
+            contents
+        );
+    }
+}
@@ -0,0 +1,57 @@
+
+package dev.m1younis.controller;
+
+import dev.m1younis.model.Message;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+
+/**
+ * An interface describing the persistent storage engines messages can be kept in.
+ *
+ * <p>
+ * Messages are immutable and addressed by their SHA-256 sum, so implementations only need to
+ * support insertion and lookups - storing a message whose hash already exists has no effect.
+ * </p>
+ */
+public interface MessageStore {
+    /**
+     * The results of a range query, counted up front with hashes read from storage as they are
+     * taken. Cursors hold nothing open between calls, so may be left part way through or resumed
+     * from another thread.
+     */
+    interface RangeCursor {
+        int count();
+
+        // Returns `null` once every hash counted has been taken
+        String next() throws IOException;
+    }
+
+    // Completes once the message is durably stored
+    CompletableFuture<Void> put(Message message);
+
+    // Returns `null` given no message with the hash is stored
+    Message get(String hash);
+
+    boolean exists(String hash);
+
+    // Opens a cursor over the hashes of messages created on or after `since` whose body contains
+    // `content` (if not `null`) in order of creation, with the count and hashes drawn from the same
+    // snapshot
+    RangeCursor range(long since, String content) throws IOException;
+
+    // Visits messages created between `since` and `until` (inclusive) in order of creation until
+    // the visitor returns `false`
+    void forEach(long since, long until, Predicate<Message> visitor);
+
+    // Visits messages from the most recently created (or stored) until the visitor returns `false`
+    void forEachRecent(Predicate<Message> visitor);
+
+    // The latest creation time synced from the peer, or `0` if never synced with
+    long getWatermark(String peer);
+
+    // Only ever advances the peer's watermark
+    void setWatermark(String peer, long created);
+
+    void close();
+}
@@ -0,0 +1,124 @@
+
+package dev.m1younis.controller;
+
+import dev.m1younis.model.Message;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A background writer that queues messages for storage and persists them in batches.
+ *
+ * <p>
+ * Queued messages are grouped until either the batch size or maximum delay is reached, at which
+ * point the whole batch is handed to a single write (e.g. one database transaction) so the cost of
+ * syncing to disk is shared among all of its messages. Each submission returns a future completed
+ * once its batch has been written, allowing callers to wait for durability where required.
+ * </p>
+ */
+public class MessageWriter extends Thread {
+    /**
+     * Persists a batch of messages as a single unit of work.
+     */
+    @FunctionalInterface
+    public interface BatchHandler {
+        void write(List<Message> batch) throws Exception;
+    }
+
+    // A queued message paired with the future completed once it has been written
+    private static class PendingWrite {
+        private final Message message;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private PendingWrite(Message message) {
+            this.message = message;
+        }
+    }
+
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private final BatchHandler handler;
+    private final int batchSize;
+    private final long maxDelay;            // Nanoseconds a batch is held open for
+
+    private volatile boolean running = true;
+
+    public MessageWriter(BatchHandler handler, int batchSize, long maxDelayMillis) {
+        super("pm2p-message-writer");
+        this.handler = handler;
+        this.batchSize = Math.max(batchSize, 1);
+        this.maxDelay = TimeUnit.MILLISECONDS.toNanos(Math.max(maxDelayMillis, 0));
+        this.setDaemon(true);
+        this.start();
+    }
+
+    public CompletableFuture<Void> submit(Message message) {
+        final PendingWrite write = new PendingWrite(message);
+        if (this.running)
+            this.queue.add(write);
+        else
+            write.future.completeExceptionally(new IllegalStateException("Writer is closed"));
+        return write.future;
+    }
+
+    private void flush(List<PendingWrite> pending) {
+        final List<Message> batch = new ArrayList<>(pending.size());
+        for (PendingWrite write : pending)
+            batch.add(write.message);
+
+        try {
+            this.handler.write(batch);
+            pending.forEach(write -> write.future.complete(null));
+        } catch (Exception e) {
+            e.printStackTrace();
+            pending.forEach(write -> write.future.completeExceptionally(e));
+        }
+        pending.clear();
+    }
+
+    public void close() {
+        // Stops accepting messages then waits for those already queued to be written
+        this.running = false;
+        this.interrupt();
+        try {
+            this.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Catches messages submitted while the writer was stopping
+        final List<PendingWrite> pending = new ArrayList<>(this.batchSize);
+        while (this.queue.drainTo(pending, this.batchSize) > 0)
+            this.flush(pending);
+    }
+
+    @Override
+    public void run() {
+        final List<PendingWrite> pending = new ArrayList<>(this.batchSize);
+        while (this.running) {
+            try {
+                // Blocks for the first message, then gathers more until the batch is full or its
+                // delay has elapsed
+                pending.add(this.queue.take());
+                final long deadline = System.nanoTime() + this.maxDelay;
+                while (pending.size() < this.batchSize) {
+                    final PendingWrite write =
+                        this.queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (write == null)
+                        break;
+                    pending.add(write);
+                }
+            } catch (InterruptedException e) {
+                // Raised by `close` - anything gathered so far is flushed below
+            }
+            if (!pending.isEmpty())
+                this.flush(pending);
+        }
+
+        // Remaining messages are drained in batches once closed
+        while (this.queue.drainTo(pending, this.batchSize) > 0)
+            this.flush(pending);
+    }
+}
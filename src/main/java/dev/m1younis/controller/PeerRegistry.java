@@ -0,0 +1,108 @@
+
+package dev.m1younis.controller;
+
+import dev.m1younis.model.Client;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe registry of the incoming peers currently connected, alongside when and in which
+ * order each connected.
+ *
+ * <p>
+ * Peers are registered by the server thread and removed by whichever thread serves them once they
+ * leave, so entries are kept in a concurrent map. Iterating over the registered peers never blocks
+ * either, seeing every peer registered beforehand that is yet to be removed. Each peer's traffic is
+ * counted by its client as it happens, so reading a peer's statistics is always up to date.
+ * </p>
+ */
+public class PeerRegistry {
+    private final Map<Client, Peer> peers = new ConcurrentHashMap<>();
+    private final AtomicLong registered = new AtomicLong();
+
+    // A registered peer's connection metadata
+    public static final class Peer {
+        private final Client client;
+        private final long sequence,       // Order in which the peer connected
+                          connected;       // Time (in Unix Epoch milliseconds) it connected
+
+        private Peer(Client client, long sequence) {
+            this.client = client;
+            this.sequence = sequence;
+            this.connected = System.currentTimeMillis();
+        }
+
+        public Client getClient() {
+            return this.client;
+        }
+
+        public long getConnected() {
+            return this.connected;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                "%s (%s) for %ds - received %d bytes (%d requests), sent %d bytes (%d requests)",
+                this.client.getIdentifier(),
+                this.client.getAddress(),
+                (System.currentTimeMillis() - this.connected) / 1000,
+                this.client.getBytesReceived(),
+                this.client.getRequestsReceived(),
+                this.client.getBytesSent(),
+                this.client.getRequestsSent()
+            );
+        }
+    }
+
+    public Peer register(Client client) {
+        final Peer peer = new Peer(client, this.registered.incrementAndGet());
+        this.peers.put(client, peer);
+        return peer;
+    }
+
+    public Peer remove(Client client) {
+        // Returns the peer removed, or `null` if it has already left
+        return this.peers.remove(client);
+    }
+
+    public boolean isEmpty() {
+        return this.peers.isEmpty();
+    }
+
+    public int size() {
+        return this.peers.size();
+    }
+
+    public Collection<Peer> getPeers() {
+        return this.peers.values();
+    }
+
+    public Client getLatest() {
+        // The most recently connected peer still registered, if any
+        Peer latest = null;
+        for (Peer peer : this.peers.values()) {
+            if (latest == null || peer.sequence > latest.sequence)
+                latest = peer;
+        }
+        return latest == null ? null : latest.client;
+    }
+
+    public int broadcast(String line) {
+        // Writes the line to every registered peer, returning how many it was written to - peers
+        // which cannot be written to are left to be removed as their connections close
+        int written = 0;
+        for (Peer peer : this.peers.values()) {
+            try {
+                peer.client.send(line);
+                written++;
+            } catch (IOException e) {
+                System.out.printf("Unable to write to %s\n", peer.client.getAddress());
+            }
+        }
+        return written;
+    }
+}
@@ -0,0 +1,203 @@
+
+package dev.m1younis.controller;
+
+import java.util.Arrays;
+
+/**
+ * A reusable parser splitting protocol lines into whitespace-separated tokens, shared by the client
+ * handling lines from the connected party and the controller validating requests entered in the UI.
+ *
+ * <p>
+ * Lines are tokenised as `String.split("\\s+")` would split them, though only token boundaries are
+ * recorded - tokens are compared, classified and parsed as numbers in place, so handling a line
+ * allocates nothing unless a token is asked for as a string. Each parser holds the last line parsed
+ * and must only be used by one thread at a time.
+ * </p>
+ */
+public class RequestParser {
+    // The first words of every request and response, by which lines are classified
+    public enum Kind {
+        ACK("ACK?"),
+        HELP("HELP?"),
+        TIME("TIME?"),
+        LOAD("LOAD?"),
+        SHOW("SHOW?"),
+        DEFLATE("DEFLATE!"),
+        QUIT("QUIT!"),
+        NOW("NOW"),
+        NOT("NOT"),
+        NONE("NONE"),
+        ENTRIES("ENTRIES"),
+        SUCCESS("SUCCESS"),
+        BATCH("BATCH"),
+        PROTOCOL("PoliteMessaging"),
+        UNKNOWN(null);
+
+        private static final Kind[] KINDS = values();
+
+        private final String word;
+
+        Kind(String word) {
+            this.word = word;
+        }
+
+        public static Kind of(CharSequence line) {
+            // Classifies a line (or several) by its first token alone
+            int end = 0;
+            while (end < line.length() && !isSpace(line.charAt(end)))
+                end++;
+            return of(line, 0, end);
+        }
+
+        private static Kind of(CharSequence line, int start, int end) {
+            for (Kind kind : KINDS) {
+                if (kind.word != null && regionEquals(line, start, end, kind.word))
+                    return kind;
+            }
+            return UNKNOWN;
+        }
+
+        public boolean isRequest() {
+            return this.compareTo(QUIT) <= 0;
+        }
+
+        public boolean isResponse() {
+            return this.compareTo(NOW) >= 0 && this != UNKNOWN;
+        }
+
+        public boolean isAnswered() {
+            // Requests answered with a response
+            return this == HELP || this == TIME || this == LOAD || this == SHOW;
+        }
+    }
+
+    private CharSequence line = "";
+    private Kind kind = Kind.UNKNOWN;
+
+    // Token boundaries of the line last parsed, grown to fit lines with more tokens
+    private int[] starts = new int[4],
+                    ends = new int[4];
+    private int count = 0;
+
+    private static boolean isSpace(char c) {
+        // Matches `\s`, rather than every character `Character.isWhitespace` accepts
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    public static int countTokens(CharSequence line) {
+        // Counts the line's non-empty tokens without parsing it, leaving the parser's line be
+        int count = 0;
+        for (int i = 0; i < line.length(); i++) {
+            if (!isSpace(line.charAt(i)) && (i == 0 || isSpace(line.charAt(i - 1))))
+                count++;
+        }
+        return count;
+    }
+
+    private static boolean regionEquals(CharSequence line, int start, int end, String word) {
+        if (end - start != word.length())
+            return false;
+        for (int i = 0; i < word.length(); i++) {
+            if (line.charAt(start + i) != word.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private void add(int start, int end) {
+        if (this.count == this.starts.length) {
+            this.starts = Arrays.copyOf(this.starts, 2 * this.count);
+            this.ends = Arrays.copyOf(this.ends, 2 * this.count);
+        }
+        this.starts[this.count] = start;
+        this.ends[this.count++] = end;
+    }
+
+    public Kind parse(CharSequence line) {
+        // As with `split`, leading whitespace gives an empty first token while trailing
+        // whitespace gives none
+        this.line = line;
+        this.count = 0;
+        final int length = line.length();
+        int i = 0;
+        if (length > 0 && isSpace(line.charAt(0)))
+            this.add(0, 0);
+        while (i < length) {
+            while (i < length && isSpace(line.charAt(i)))
+                i++;
+            if (i == length)
+                break;
+            final int start = i;
+            while (i < length && !isSpace(line.charAt(i)))
+                i++;
+            this.add(start, i);
+        }
+        if (this.count == 0)
+            this.add(0, 0);
+
+        this.kind = Kind.of(line, this.starts[0], this.ends[0]);
+        return this.kind;
+    }
+
+    public Kind getKind() {
+        return this.kind;
+    }
+
+    public int count() {
+        return this.count;
+    }
+
+    public String token(int i) {
+        return this.line.subSequence(this.starts[i], this.ends[i]).toString();
+    }
+
+    private NumberFormatException invalid(int i) {
+        return new NumberFormatException(String.format("Invalid number `%s`", this.token(i)));
+    }
+
+    public long parseLong(int i) {
+        return this.parseLong(i, 0);
+    }
+
+    public long parseLong(int i, int offset) {
+        // Parses the token (from `offset` characters in) as `Long.parseLong` would, throwing
+        // `NumberFormatException` for tokens that are missing or not decimal numbers
+        if (i >= this.count)
+            throw new NumberFormatException(String.format("No token %d", i));
+        int pos = this.starts[i] + offset;
+        final int end = this.ends[i];
+        if (pos >= end)
+            throw new NumberFormatException("Empty number");
+
+        final boolean negative = this.line.charAt(pos) == '-';
+        if (negative || this.line.charAt(pos) == '+')
+            pos++;
+        if (pos == end)
+            throw new NumberFormatException("Sign without digits");
+
+        // Accumulated negatively, so that `Long.MIN_VALUE` can be parsed without overflowing
+        final long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long value = 0;
+        for (; pos < end; pos++) {
+            final int digit = Character.digit(this.line.charAt(pos), 10);
+            if (digit < 0 || value < limit / 10)
+                throw this.invalid(i);
+            value *= 10;
+            if (value < limit + digit)
+                throw this.invalid(i);
+            value -= digit;
+        }
+        return negative ? value : -value;
+    }
+
+    public int parseInt(int i) {
+        return this.parseInt(i, 0);
+    }
+
+    public int parseInt(int i, int offset) {
+        final long value = this.parseLong(i, offset);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+            throw this.invalid(i);
+        return (int) value;
+    }
+}
@@ -0,0 +1,401 @@
+
+package dev.m1younis.controller;
+
+import dev.m1younis.controller.DatabaseController.PooledConnection;
+import dev.m1younis.model.Message;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+
+/**
+ * The default message store, keeping messages within the local SQLite database.
+ */
+public class SqliteMessageStore implements MessageStore {
+    // Statements prepared once per pooled connection and reused thereafter - messages are content
+    // addressed, so a row with an existing hash is identical and can safely be ignored
+    private static final String INSERT_QUERY =
+        "INSERT OR IGNORE INTO `messages` (`uid`, `created`, `sender`, `recipient`, `topic`, "
+        + "`subject`, `contents`) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String SELECT_QUERY = "SELECT * FROM `messages` WHERE `uid` = ?";
+    private static final String EXISTS_QUERY = "SELECT 1 FROM `messages` WHERE `uid` = ?";
+    private static final String SELECT_RANGE_QUERY =
+        "SELECT * FROM `messages` WHERE `created` BETWEEN ? AND ? ORDER BY `created`";
+    private static final String SELECT_RECENT_QUERY =
+        "SELECT * FROM `messages` ORDER BY `created` DESC";
+
+    // Full-text index maintenance - candidates matched by the trigram index are still verified
+    // against the message body to retain exact substring semantics. Rows are assigned increasing
+    // rowids, so those inserted by a batch are exactly the ones beyond the largest rowid beforehand
+    private static final String LAST_ROWID_QUERY = "SELECT max(`rowid`) FROM `messages`";
+    private static final String INSERT_INDEX_QUERY = String.format(
+        "INSERT INTO `messages_fts` (`rowid`, `body`) SELECT `rowid`, %s FROM `messages` "
+        + "WHERE `rowid` > ?",
+        DatabaseController.MESSAGE_BODY_EXPRESSION
+    );
+
+    // Range filters, each queried for a count of matching rows followed by their hashes a page at
+    // a time - rows are never removed and those stored later are assigned larger rowids, so
+    // bounding every query by the largest rowid when counted keeps each page within one snapshot
+    private static final String RANGE_FILTER = "WHERE `created` >= ?";
+    private static final String RANGE_CONTENT_FILTER = String.format(
+        "WHERE `created` >= ? AND instr(%s, ?) > 0",
+        DatabaseController.MESSAGE_BODY_EXPRESSION
+    );
+    private static final String RANGE_INDEX_FILTER = String.format(
+        "WHERE `rowid` IN (SELECT `rowid` FROM `messages_fts` WHERE `messages_fts` MATCH ?) "
+        + "AND `created` >= ? AND instr(%s, ?) > 0",
+        DatabaseController.MESSAGE_BODY_EXPRESSION
+    );
+    private static final String[] RANGE_QUERIES = rangeQueries(RANGE_FILTER),
+                            RANGE_INDEX_QUERIES = rangeQueries(RANGE_INDEX_FILTER),
+                          RANGE_CONTENT_QUERIES = rangeQueries(RANGE_CONTENT_FILTER);
+
+    // Trigram tokenisation is unable to match content shorter than this
+    private static final int INDEX_MIN_CONTENT_LENGTH = 3;
+
+    // Hashes read per page of a range query, each read with a connection of its own
+    private static final int RANGE_PAGE_SIZE = 1024;
+
+    // Group-commit writer through which all inserts are funnelled, holding batches open for up to
+    // 256 messages or 10 milliseconds by default
+    private final MessageWriter writer = new MessageWriter(
+        this::insertMessages,
+        Integer.getInteger("pm2p.writer.batch", 256),
+        Long.getLong("pm2p.writer.delay", 10)
+    );
+
+    // Whether the writer may still train a compression dictionary, attempted after each batch until
+    // enough messages are stored to train from - only ever accessed by the writer thread
+    private boolean trainable = ContentCodec.ENABLED;
+
+    private static String[] rangeQueries(String filter) {
+        // Pages continue from the last row taken, in order of creation then rowid
+        return new String[]{
+            String.format("SELECT count(*) FROM `messages` %s AND `rowid` <= ?", filter),
+            String.format(
+                "SELECT `uid`, `created`, `rowid` FROM `messages` %s AND `rowid` <= ? "
+                + "AND (`created` > ? OR `rowid` > ?) ORDER BY `created`, `rowid` LIMIT ?",
+                filter
+            )
+        };
+    }
+
+    /**
+     * A cursor over the rows matching a range query, reading a page of hashes whenever those
+     * already read are taken.
+     */
+    private static class Cursor implements RangeCursor {
+        private final String query,
+                           content;
+        private final boolean indexed;
+        private final long snapshot;
+        private final int count;
+
+        private final Queue<String> page = new ArrayDeque<>();
+        private long created,               // Creation time and rowid of the last row read
+                       rowid = Long.MIN_VALUE;
+        private int taken = 0;
+
+        private Cursor(
+            String query,
+            long since,
+            String content,
+            boolean indexed,
+            long snapshot,
+            int count
+        ) {
+            this.query = query;
+            this.created = since;
+            this.content = content;
+            this.indexed = indexed;
+            this.snapshot = snapshot;
+            this.count = count;
+        }
+
+        @Override
+        public int count() {
+            return this.count;
+        }
+
+        @Override
+        public String next() throws IOException {
+            if (this.taken == this.count)
+                return null;
+            if (this.page.isEmpty())
+                this.read();
+            final String hash = this.page.poll();
+            if (hash != null)
+                this.taken++;
+            return hash;
+        }
+
+        private void read() throws IOException {
+            try (PooledConnection pooled = DatabaseController.acquire(false)) {
+                final PreparedStatement stmt = pooled.prepare(this.query);
+                int i = bindRange(stmt, this.created, this.content, this.indexed);
+                stmt.setLong(i++, this.snapshot);
+                stmt.setLong(i++, this.created);
+                stmt.setLong(i++, this.rowid);
+                stmt.setInt(i, RANGE_PAGE_SIZE);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        this.page.add(rs.getString(1));
+                        this.created = rs.getLong(2);
+                        this.rowid = rs.getLong(3);
+                    }
+                }
+            } catch (SQLException e) {
+                // The count has already been given, so the response can no longer be completed
+                throw new IOException(e);
+            }
+        }
+    }
+
+    private static Message readMessage(ResultSet rs) throws SQLException {
+        // Compressed contents are stored as blobs and only decompressed once needed, whereas text
+        // contents are split into lines immediately
+        final Object contents = rs.getObject("contents");
+        if (contents instanceof byte[]) {
+            final byte[] encoded = (byte[]) contents;
+            return new Message(
+                rs.getString("uid"),
+                rs.getString("sender"),
+                rs.getString("recipient"),
+                rs.getString("topic"),
+                rs.getString("subject"),
+                rs.getLong("created"),
+                ContentCodec.decodedLength(encoded),
+                () -> ContentCodec.decode(encoded).split("\n")
+            );
+        }
+
+        return new Message(
+            rs.getString("uid"),
+            rs.getString("sender"),
+            rs.getString("recipient"),
+            rs.getString("topic"),
+            rs.getString("subject"),
+            rs.getLong("created"),
+            ((String) contents).split("\n")
+        );
+    }
+
+    private void insertMessages(List<Message> batch) throws SQLException {
+        // The whole batch is inserted within a single transaction, meaning the log is synced once
+        // per batch rather than once per message
+        try (PooledConnection pooled = DatabaseController.acquire(true)) {
+            final Connection conn = pooled.getConnection();
+            final PreparedStatement stmt = pooled.prepare(INSERT_QUERY);
+            conn.setAutoCommit(false);
+            try {
+                long last = 0;
+                if (DatabaseController.FULL_TEXT_INDEX) {
+                    try (ResultSet rs = pooled.prepare(LAST_ROWID_QUERY).executeQuery()) {
+                        last = rs.next() ? rs.getLong(1) : 0;
+                    }
+                }
+
+                for (Message message : batch) {
+                    // Optional message fields are bound as SQL `NULL`s given they are absent
+                    stmt.setString(1, message.getHash());
+                    stmt.setLong(2, message.getCreated());
+                    stmt.setString(3, message.getSender());
+                    if (message.getRecipient() == null)
+                        stmt.setNull(4, Types.VARCHAR);
+                    else
+                        stmt.setString(4, message.getRecipient());
+                    if (message.getTopic() == null)
+                        stmt.setNull(5, Types.VARCHAR);
+                    else
+                        stmt.setString(5, message.getTopic());
+                    if (message.getSubject() == null)
+                        stmt.setNull(6, Types.VARCHAR);
+                    else
+                        stmt.setString(6, message.getSubject());
+
+                    // Contents are stored as text where compression is disabled or ineffective
+                    final String contents = String.join("\n", message.getContents());
+                    final byte[] encoded =
+                        ContentCodec.ENABLED ? ContentCodec.encode(contents) : null;
+                    if (encoded == null)
+                        stmt.setString(7, contents);
+                    else
+                        stmt.setBytes(7, encoded);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+
+                // Only newly inserted rows are added to the full-text index, as ignored rows are
+                // already present - indexing the batch with a single statement lets the index
+                // build one segment for it rather than updating once per row
+                if (DatabaseController.FULL_TEXT_INDEX) {
+                    final PreparedStatement index = pooled.prepare(INSERT_INDEX_QUERY);
+                    index.setLong(1, last);
+                    index.executeUpdate();
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+
+            // Training failures leave the committed batch be, with training left to the next launch
+            if (this.trainable && !ContentCodec.isTrained()) {
+                try {
+                    this.trainable = !DatabaseController.train(conn);
+                } catch (SQLException e) {
+                    this.trainable = false;
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void visit(PreparedStatement stmt, Predicate<Message> visitor) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                if (!visitor.test(readMessage(rs)))
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> put(Message message) {
+        return this.writer.submit(message);
+    }
+
+    @Override
+    public Message get(String hash) {
+        try (PooledConnection conn = DatabaseController.acquire(false)) {
+            final PreparedStatement stmt = conn.prepare(SELECT_QUERY);
+            stmt.setString(1, hash);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next())
+                    return readMessage(rs);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    @Override
+    public boolean exists(String hash) {
+        try (PooledConnection conn = DatabaseController.acquire(false)) {
+            final PreparedStatement stmt = conn.prepare(EXISTS_QUERY);
+            stmt.setString(1, hash);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    @Override
+    public RangeCursor range(long since, String content) {
+        // `since` is served by the `created` index so only rows in range are visited, with content
+        // matching (if any) narrowed down by the full-text index where possible before being
+        // applied
+        final String[] queries;
+        final boolean indexed = content != null
+            && DatabaseController.FULL_TEXT_INDEX
+            && content.codePointCount(0, content.length()) >= INDEX_MIN_CONTENT_LENGTH;
+        if (content == null)
+            queries = RANGE_QUERIES;
+        else
+            queries = indexed ? RANGE_INDEX_QUERIES : RANGE_CONTENT_QUERIES;
+
+        long snapshot = 0;
+        int matches = 0;
+        try (PooledConnection pooled = DatabaseController.acquire(false)) {
+            try (ResultSet rs = pooled.prepare(LAST_ROWID_QUERY).executeQuery()) {
+                snapshot = rs.next() ? rs.getLong(1) : 0;
+            }
+            final PreparedStatement count = pooled.prepare(queries[0]);
+            count.setLong(bindRange(count, since, content, indexed), snapshot);
+            try (ResultSet rs = count.executeQuery()) {
+                matches = rs.next() ? rs.getInt(1) : 0;
+            }
+        } catch (SQLException e) {
+            // Failures are reported as an empty result, as nothing has been given yet
+            e.printStackTrace();
+            matches = 0;
+        }
+        return new Cursor(queries[1], since, content, indexed, snapshot, matches);
+    }
+
+    private static int bindRange(
+        PreparedStatement stmt,
+        long since,
+        String content,
+        boolean indexed
+    ) throws SQLException {
+        // Returns the index of the first parameter following the filter's
+        if (indexed) {
+            // Content is searched for as a single phrase, with any quotes escaped
+            stmt.setString(1, String.format("\"%s\"", content.replace("\"", "\"\"")));
+            stmt.setLong(2, since);
+            stmt.setString(3, content);
+            return 4;
+        }
+        stmt.setLong(1, since);
+        if (content == null)
+            return 2;
+        stmt.setString(2, content);
+        return 3;
+    }
+
+    @Override
+    public void forEach(long since, long until, Predicate<Message> visitor) {
+        // Rows are read as they are visited, with the open query seeing a single snapshot of the
+        // store however long the visit takes
+        try (PooledConnection conn = DatabaseController.acquire(false)) {
+            final PreparedStatement stmt = conn.prepare(SELECT_RANGE_QUERY);
+            stmt.setLong(1, since);
+            stmt.setLong(2, until);
+            this.visit(stmt, visitor);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void forEachRecent(Predicate<Message> visitor) {
+        try (PooledConnection conn = DatabaseController.acquire(false)) {
+            this.visit(conn.prepare(SELECT_RECENT_QUERY), visitor);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public long getWatermark(String peer) {
+        return DatabaseController.getWatermark(peer);
+    }
+
+    @Override
+    public void setWatermark(String peer, long created) {
+        DatabaseController.setWatermark(peer, created);
+    }
+
+    @Override
+    public void close() {
+        // Queued messages are committed before the database connections are closed
+        this.writer.close();
+        DatabaseController.shutdown();
+    }
+}
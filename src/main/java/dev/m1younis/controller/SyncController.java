@@ -0,0 +1,132 @@
+
+package dev.m1younis.controller;
+
+import dev.m1younis.model.Client;
+import dev.m1younis.model.Message;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A class pulling messages from connected peers, loading only those created since the last sync
+ * with each peer that are missing locally.
+ *
+ * <p>
+ * Each sync lists the peer's messages created on or after its watermark - the latest creation time
+ * synced from it, persisted per peer identifier - then loads the missing messages as pipelined
+ * `LOAD?` requests. Loaded messages have their hashes verified across a pool of worker threads,
+ * keeping hashing off the connection's reader, then are stored through the batching message writer
+ * without the dialogs shown for loads requested through the UI. Watermarks only advance once every
+ * missing message has been loaded, so interrupted syncs are picked up again.
+ * </p>
+ */
+public class SyncController {
+    // Shared by every sync, with each response (or batch of responses) verified by a single worker
+    private static final Executor VERIFIERS = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(),
+        task -> {
+            final Thread thread = new Thread(task, "sync-verifier");
+            thread.setDaemon(true);
+            return thread;
+        }
+    );
+
+    private static CompletableFuture<Void> store(
+        String response,
+        LongAdder pulled,
+        AtomicLong latest
+    ) {
+        // Messages no longer held by the peer or failing verification are skipped rather than
+        // failing the sync, as listing them again would never succeed - batches are stored as the
+        // responses they hold
+        if (response.startsWith("BATCH")) {
+            final List<CompletableFuture<Void>> stored = new ArrayList<>();
+            for (String loaded : Client.splitBatch(response))
+                stored.add(store(loaded, pulled, latest));
+            return CompletableFuture.allOf(stored.toArray(new CompletableFuture<?>[0]));
+        }
+        if (!response.startsWith("SUCCESS"))
+            return CompletableFuture.completedFuture(null);
+
+        final Message message = Client.parseLoadedMessage(response);
+        if (!message.verifyHash()) {
+            System.out.printf("Synced message `%s` rejected - hash mismatch\n", message.getHash());
+            return CompletableFuture.completedFuture(null);
+        }
+
+        latest.accumulateAndGet(message.getCreated(), Math::max);
+        if (MessageController.hasMessage(message.getHash()))
+            return CompletableFuture.completedFuture(null);
+        pulled.increment();
+        return MessageController.storeMessage(message);
+    }
+
+    private static CompletableFuture<long[]> pull(Client session, String listing) {
+        // Listed messages already held locally are skipped without being loaded, with the rest
+        // requested all at once and stored as each arrives - v2 peers are sent batches of hashes,
+        // costing a single response each
+        final int batch = session.getVersion() >= 2 ? Client.MAX_BATCH_LOAD : 1;
+        final AtomicLong latest = new AtomicLong();
+        final List<String> requests = new ArrayList<>();
+        StringBuilder request = null;
+        String lastHeld = null;
+        int hashes = 0;
+        for (String line : listing.split("\n")) {
+            if (!line.startsWith("> "))
+                continue;
+            final String hash = line.substring(2);
+            if (MessageController.hasMessage(hash)) {
+                lastHeld = hash;
+                continue;
+            }
+            lastHeld = null;
+            if (request == null)
+                request = new StringBuilder("LOAD?");
+            request.append(' ').append(hash);
+            if (++hashes == batch) {
+                requests.add(request.toString());
+                request = null;
+                hashes = 0;
+            }
+        }
+        if (request != null)
+            requests.add(request.toString());
+
+        // Messages are listed in order of creation, so only the last listed message counts
+        // towards the watermark should it already be held - loaded messages count as they arrive
+        if (lastHeld != null) {
+            final Message held = MessageController.getMessage(lastHeld);
+            if (held != null)
+                latest.accumulateAndGet(held.getCreated(), Math::max);
+        }
+
+        final LongAdder pulled = new LongAdder();
+        final List<CompletableFuture<Void>> stored = new ArrayList<>(requests.size());
+        for (CompletableFuture<String> response : session.request(requests, false))
+            stored.add(response.thenComposeAsync(r -> store(r, pulled, latest), VERIFIERS));
+
+        return CompletableFuture.allOf(stored.toArray(new CompletableFuture<?>[0]))
+            .thenApply(v -> new long[]{pulled.sum(), latest.get()});
+    }
+
+    public static CompletableFuture<Integer> sync(Client session) {
+        // Completes with the number of messages stored, or exceptionally should the connection be
+        // lost before every missing message is loaded
+        return session.getAcknowledgement().thenCompose(peer -> {
+            final long watermark = MessageController.getWatermark(peer);
+            // `SHOW?` requests are only answered for times in the past
+            final long since = Math.min(watermark, System.currentTimeMillis() / 1000 - 1);
+            return session.request(List.of(String.format("SHOW? %d 0", since)), false).get(0)
+                .thenCompose(listing -> pull(session, listing))
+                .thenApply(result -> {
+                    if (result[1] > watermark)
+                        MessageController.setWatermark(peer, result[1]);
+                    return (int) result[0];
+                });
+        });
+    }
+}
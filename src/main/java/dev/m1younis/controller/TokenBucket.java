@@ -0,0 +1,53 @@
+
+package dev.m1younis.controller;
+
+/**
+ * A token bucket limiting how often something may happen, allowing short bursts up to its capacity
+ * while holding the sustained rate to a given number of tokens per second.
+ *
+ * <p>
+ * Tokens are refilled lazily upon each attempt rather than by a timer, so idle buckets cost
+ * nothing. Buckets may be shared by several connections, so are drawn from under their monitor.
+ * </p>
+ */
+public class TokenBucket {
+    private final double rate,          // Tokens added per nanosecond
+                     capacity;
+    private double tokens;
+    private long refilled = System.nanoTime();
+
+    public TokenBucket(double perSecond, double capacity) {
+        this.rate = perSecond / 1e9;
+        this.capacity = Math.max(capacity, 1);
+        this.tokens = this.capacity;
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        this.tokens = Math.min(this.capacity, this.tokens + (now - this.refilled) * this.rate);
+        this.refilled = now;
+    }
+
+    public long acquire() {
+        return this.acquire(1);
+    }
+
+    public synchronized long acquire(int cost) {
+        // Takes `cost` tokens if available, returning `0` - otherwise returns the time (in
+        // nanoseconds) until they will be, leaving the bucket untouched. Costs beyond the capacity
+        // only wait for a full bucket, leaving it in debt for the remainder
+        this.refill();
+        final double required = Math.min(cost, this.capacity);
+        if (this.tokens >= required) {
+            this.tokens -= cost;
+            return 0;
+        }
+        return Math.max((long) Math.ceil((required - this.tokens) / this.rate), 1);
+    }
+
+    public synchronized boolean isFull() {
+        // Full buckets are indistinguishable from new ones, so can be discarded
+        this.refill();
+        return this.tokens >= this.capacity;
+    }
+}
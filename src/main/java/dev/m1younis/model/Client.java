@@ -1,46 +1,105 @@
 
 package dev.m1younis.model;
 
+import dev.m1younis.controller.LineReader;
 import dev.m1younis.controller.MessageController;
+import dev.m1younis.controller.MessageDecoder;
+import dev.m1younis.controller.MessageStore.RangeCursor;
+import dev.m1younis.controller.RequestParser;
+import dev.m1younis.controller.RequestParser.Kind;
+import dev.m1younis.controller.TokenBucket;
 import dev.m1younis.view.MainView;
-import java.io.BufferedReader;
+import java.awt.EventQueue;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.StringJoiner;
-import java.util.regex.Pattern;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 /**
  * A class representing a connected client thread and the PM protocol it communicates with.
  */
-public class Client extends Thread {
-    // PM communication protocol constants
-    private static final int PROTOCOL_MIN_VERSION = 1;
+public class Client implements Runnable {
+    // PM communication protocol constants - each party acknowledges the highest version it
+    // supports, with communication following the lower of the two
+    private static final int PROTOCOL_MIN_VERSION = 1,
+                                 PROTOCOL_VERSION = 3;
     private static final String PROTOCOL_ACK_MESSAGE =
-        String.format("ACK? PM/%d", PROTOCOL_MIN_VERSION);
-    private static final List<String> PROTOCOL_HELP_MESSAGE = List.of(
-        String.format("PoliteMessaging Protocol (v%d.0)", PROTOCOL_MIN_VERSION),
-        "> HELP?\tDisplays this message",
-        "> TIME?\tReturns the current time (in Unix Epoch) at the receiving peer",
-        "> LOAD? <hash>",
+        String.format("ACK? PM/%d", PROTOCOL_VERSION);
+    // Each version's summary is built from the lines shared by every version, differing in how
+    // `LOAD?` is described and in the requests it adds ahead of `QUIT!` - v1 peers expect the
+    // number of lines in the first, so each version is sent its own
+    private static final List<String> PROTOCOL_HELP_MESSAGE = buildHelpMessage(
+        PROTOCOL_MIN_VERSION,
+        List.of(
+            "> LOAD? <hash>",
+            "  \tRetrieves a stored message object from the peer by its unique identifier",
+            "  \t`hash`, which is equivalent to the message body's SHA-256 sum"
+        ),
+        List.of()
+    );
+
+    // Version 2 allows several hashes to be loaded at once
+    private static final List<String> PROTOCOL_BATCH_LOAD_HELP = List.of(
+        "> LOAD? <hash> [<hash> ...]",
         "  \tRetrieves a stored message object from the peer by its unique identifier",
-        "  \t`hash`, which is equivalent to the message body's SHA-256 sum",
-        "> SHOW? <since> <headers>",
-        "  \tLists the SHA-256 sum of all message objects created on or after `since`",
-        "  \tand contain the contents specified by `headers`",
-        "> QUIT!\tEnds the communication between two peers politely"
+        "  \t`hash`, which is equivalent to the message body's SHA-256 sum - several",
+        "  \thashes are answered together in order, following `BATCH <count>`"
+    );
+    private static final List<String> PROTOCOL_V2_HELP_MESSAGE =
+        buildHelpMessage(2, PROTOCOL_BATCH_LOAD_HELP, List.of());
+
+    // Version 3 adds compression, announced by either party for everything it writes thereafter
+    private static final List<String> PROTOCOL_V3_HELP_MESSAGE = buildHelpMessage(
+        3,
+        PROTOCOL_BATCH_LOAD_HELP,
+        List.of("> DEFLATE!\tEverything the sender writes hereafter is compressed (raw DEFLATE)")
     );
 
-    // Regex defined to detect `SHOW?` requests with a non-zero amount of headers
-    private static final String SHOW_REQUEST_HEADER_REGEX =
-        "^SHOW\\?\\s(0|[1-9]\\d*)\\s[1-9]\\d*$";
+    // Whether output to v3 peers is compressed
+    private static final boolean COMPRESSED =
+        Boolean.parseBoolean(System.getProperty("pm2p.peer.compress", "true"));
+
+    // Maximum number of hashes a single v2 `LOAD?` request may give
+    public static final int MAX_BATCH_LOAD = 1024;
+
+    // Maximum number of requests written ahead of their responses, beyond which further requests
+    // are held back until earlier ones are answered
+    private static final int REQUEST_WINDOW =
+        Math.max(Integer.getInteger("pm2p.peer.window", 64), 1);
+
+    // Requests allowed per second from the connected party, with `SHOW?` requests (each scanning
+    // the store) limited apart from cheaper ones and every hash of a `LOAD?` request counted -
+    // bursts of up to a second's worth are let through, while requests beyond them are held back
+    // until allowed
+    private static final double REQUEST_RATE =
+        Double.parseDouble(System.getProperty("pm2p.peer.rate", "1000"));
+    private static final double SHOW_RATE =
+        Double.parseDouble(System.getProperty("pm2p.peer.rate.show", "2"));
 
-    // Required for validating requests and responses
-    private static final List<String> VALID_RESPONSES_META =
-        List.of("ACK?", "NOW", "NOT", "NONE");
+    // Time (in seconds) a connecting peer may remain silent between requests, and any connected
+    // party may take to finish sending a line once begun - `0` disables either
+    public static final int IDLE_TIMEOUT = Integer.getInteger("pm2p.peer.idle", 300),
+                            READ_TIMEOUT = Integer.getInteger("pm2p.peer.read.timeout", 30);
 
     // Client's connection-specific fields
     private Socket socket;
@@ -51,6 +110,129 @@ public class Client extends Thread {
 
     private boolean peer;          // Indicates whether thread is a (connecting) peer
 
+    // Output to the connected party, through which both responses and requests entered in the UI
+    // are written - a lock rather than monitor guards it, as monitors held while blocked on I/O
+    // would pin a virtual thread to its carrier
+    private PrintStream writer = null;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The connection's streams as seen by the client, which are switched to compressed form once
+     * either party announces it.
+     */
+    public interface Transport {
+        // Input following the line last handled is decompressed from now on
+        void inflateInput();
+
+        // Returns a writer compressing everything written to it, once prior output is flushed
+        PrintStream deflateOutput();
+
+        // Whether more output is queued than should be written ahead of the connected party, in
+        // which case responses being streamed are left to be resumed - writes which block never are
+        boolean isBacklogged();
+    }
+
+    private Transport transport = null;
+    private boolean inflating = false;
+
+    // Whether the client is run by an event loop rather than its own thread, which must never be
+    // blocked by the UI
+    private boolean multiplexed = false;
+
+    // Protocol state carried between lines - requests and responses spanning several lines are
+    // accumulated until complete, with `remaining` counting the lines still to be received
+    private enum Pending {
+        NONE, SHOW_CONTENTS, HELP, LOADED, ENTRIES, BATCH
+    }
+
+    private Pending pending = Pending.NONE;
+
+    /**
+     * A response too long to be written at once, written a part at a time for as long as the
+     * transport keeps up with it.
+     */
+    private interface Stream {
+        // Writes the next part of the response, returning `false` once it is written in full
+        boolean write() throws IOException;
+    }
+
+    // The response being streamed, with lines entered in the UI meanwhile held back until it is
+    // written in full - both guarded by the lock
+    private Stream streaming = null;
+    private final Queue<String> postponed = new ArrayDeque<>();
+    private boolean acknowledged = false;
+    private int version = PROTOCOL_MIN_VERSION;      // Agreed upon once acknowledged
+    private String request = null,
+                    dialog = null;
+    private StringJoiner lines = null;
+    private int remaining = 0;
+    private long since = 0;
+
+    // Tokenises each line received, only ever used while the lock is held
+    private final RequestParser parser = new RequestParser();
+
+    // Decodes loaded messages as their lines are received, only ever used while the lock is held
+    private final MessageDecoder decoder = new MessageDecoder(true);
+
+    // Progress through a `BATCH` response - the number of loaded messages (or `NOT FOUND`s) still
+    // to be received, whether a loaded message is being decoded, and the hashes and messages (for
+    // batches requested through the UI) decoded so far
+    private int batched = 0;
+    private boolean batchLoading = false;
+    private StringJoiner batchSummary = null;
+    private List<Message> batchLoaded = null;
+
+    // A request expecting a response, completed with the response's full text once received -
+    // responses to requests made in the background are neither logged nor acted upon
+    private static final class Exchange {
+        private final String request;
+        private final boolean interactive;
+        private final CompletableFuture<String> response = new CompletableFuture<>();
+
+        private Exchange(String request, boolean interactive) {
+            this.request = request;
+            this.interactive = interactive;
+        }
+    }
+
+    // Requests written and awaiting a response, which the connected party answers in the order
+    // they were sent, followed by those held back by the window - both guarded by the lock
+    private final Queue<Exchange> inFlight = new ArrayDeque<>(),
+                                   waiting = new ArrayDeque<>();
+
+    // Completed with the connected party's identifier once the protocol is acknowledged
+    private final CompletableFuture<String> acknowledgement = new CompletableFuture<>();
+
+    // Traffic to and from the connected party, in bytes as sent over the connection
+    private final LongAdder bytesReceived = new LongAdder(),
+                                bytesSent = new LongAdder(),
+                         requestsReceived = new LongAdder(),
+                             requestsSent = new LongAdder();
+
+    // Allowances for requests received, absent when unlimited - `SHOW?` allowances are shared by
+    // every connection from the same address, so that scans cannot be multiplied by connecting
+    // more than once, with buckets of addresses gone quiet discarded once many are held
+    private final TokenBucket requests = REQUEST_RATE > 0 ?
+        new TokenBucket(REQUEST_RATE, REQUEST_RATE) : null;
+    private static final Map<InetAddress, TokenBucket> SCANS = new ConcurrentHashMap<>();
+    private static final int MAX_SCAN_BUCKETS = 4096;
+
+    private static List<String> buildHelpMessage(int version,
+                                                 List<String> load,
+                                                 List<String> added) {
+        final List<String> lines = new ArrayList<>();
+        lines.add(String.format("PoliteMessaging Protocol (v%d.0)", version));
+        lines.add("> HELP?\tDisplays this message");
+        lines.add("> TIME?\tReturns the current time (in Unix Epoch) at the receiving peer");
+        lines.addAll(load);
+        lines.add("> SHOW? <since> <headers>");
+        lines.add("  \tLists the SHA-256 sum of all message objects created on or after `since`");
+        lines.add("  \tand contain the contents specified by `headers`");
+        lines.addAll(added);
+        lines.add("> QUIT!\tEnds the communication between two peers politely");
+        return List.copyOf(lines);
+    }
+
     public Client(Socket socket, MainView ui, String identifier, boolean peer) {
         this.socket = socket;
         this.address = socket.getRemoteSocketAddress().toString().replace("localhost", "");
@@ -59,242 +241,801 @@ public class Client extends Thread {
         this.peer = peer;
     }
 
-    private String filterStoredMessages(long since, String content) {
-        // A method dedicated to handling the `SHOW?` request - iterates over stored messages,
-        // recording their associated hash given the request's conditions for doing so are met
-        List<String> entries = new ArrayList<>();
-        MessageController.loadStoredMessages()
-            .values()
-            .forEach(message -> {
-                if (message.getCreated() >= since) {
-                    final String hash = String.format("> %s", message.getHash());
-                    if (content != null) {
-                        if (message.toString().contains(content))
-                            entries.add(hash);
-                    } else
-                        entries.add(hash);
+    private String getName(boolean remote) {
+        return remote && this.peer ? this.identifier : this.address;
+    }
+
+    private void showMessageDialog(String message, int type) {
+        // Dialogs block until dismissed, so they are shown on the event dispatch thread instead of
+        // holding up every connection served by the same event loop
+        if (this.multiplexed)
+            EventQueue.invokeLater(() -> this.ui.showMessageDialog(message, type));
+        else
+            this.ui.showMessageDialog(message, type);
+    }
+
+    private String filterStoredMessages(long since, String content) throws IOException {
+        // A method dedicated to handling the `SHOW?` request - matching is delegated to the store,
+        // with the resulting hashes streamed to the peer as they are read so memory use remains
+        // flat regardless of how many messages match
+        final RangeCursor hashes = MessageController.findMessageHashes(since, content);
+        final String header = hashes.count() == 0 ?
+            "NONE" : String.format("ENTRIES %d", hashes.count());
+        this.writer.println(header);
+        if (hashes.count() > 0) {
+            this.streaming = new Stream() {
+                private int written = 0;
+
+                @Override
+                public boolean write() throws IOException {
+                    final String hash = hashes.next();
+                    if (hash == null) {
+                        // The store must give as many hashes as it counted
+                        if (this.written < hashes.count())
+                            throw new IOException("`SHOW?` response ended early");
+                        return false;
+                    }
+                    Client.this.writer.print("> ");
+                    Client.this.writer.println(hash);
+                    // Scanning stops early should the peer no longer be reading
+                    if (++this.written % 1024 == 0 && Client.this.writer.checkError())
+                        throw new IOException("Peer connection lost during `SHOW?` response");
+                    return true;
                 }
-            });
-
-        return entries.isEmpty() ? "NONE" : new StringJoiner("\n")
-            .add(String.format("ENTRIES %d", entries.size()))
-            .add(String.join("\n", entries))
-            .toString();
-    }
-
-    private String storeLoadedMessage(BufferedReader reader) throws IOException {
-        // Message exchanged via socket input stream once `LOAD?` request is completed and built
-        // using a `StringJoiner`
-        // Loaded message hash extracted
-        String line = reader.readLine();
-        final String hash = line.split("\\s+")[3];
-
-        // Headers and contents parsed next
-        final StringJoiner sj = new StringJoiner("\n");
-        while (!line.startsWith("> Contents:")) {
-            sj.add(line);
-            line = reader.readLine();
+            };
         }
-        sj.add(line);
 
-        final int contents = Integer.parseInt(line.split("\\s+")[2]);
-        for (int i = 0; i < contents; i++)
-            sj.add(reader.readLine());
+        // Only the response header is returned to be shown in the activity log
+        return header;
+    }
 
-        // Loaded message is stored locally given it doesn't exist
-        final Message message =
-            MessageController.parseMessage(sj.toString().replace("> ", ""));
-        if (!MessageController.loadStoredMessages().containsKey(hash)) {
-            MessageController.storeMessage(message);
-            this.ui.showMessageDialog(
-                String.format("Message (%s) stored successfully", hash.substring(0, 7)),
+    public static List<String> splitBatch(String batch) {
+        // Separates a `BATCH` response into the responses it holds, whose message lines are all
+        // prefixed and so cannot be mistaken for the start of the next response
+        final List<String> responses = new ArrayList<>();
+        StringJoiner response = null;
+        for (String line : batch.split("\n")) {
+            if (line.equals("SUCCESS") || line.equals("NOT FOUND")) {
+                if (response != null)
+                    responses.add(response.toString());
+                response = new StringJoiner("\n");
+            }
+            if (response != null)
+                response.add(line);
+        }
+        if (response != null)
+            responses.add(response.toString());
+
+        return responses;
+    }
+
+    public static Message parseLoadedMessage(String response) {
+        // The `SUCCESS` line is skipped by the decoder as any unrecognised header would be
+        return new MessageDecoder(true).decode(response);
+    }
+
+    private List<String> getHelpMessage() {
+        if (this.version >= 3)
+            return PROTOCOL_V3_HELP_MESSAGE;
+        return this.version == 2 ? PROTOCOL_V2_HELP_MESSAGE : PROTOCOL_HELP_MESSAGE;
+    }
+
+    public String getIdentifier() {
+        return this.identifier;
+    }
+
+    public String getAddress() {
+        return this.address;
+    }
+
+    public long getBytesReceived() {
+        return this.bytesReceived.sum();
+    }
+
+    public long getBytesSent() {
+        return this.bytesSent.sum();
+    }
+
+    public long getRequestsReceived() {
+        return this.requestsReceived.sum();
+    }
+
+    public long getRequestsSent() {
+        return this.requestsSent.sum();
+    }
+
+    public void received(int bytes) {
+        this.bytesReceived.add(bytes);
+    }
+
+    public void sent(int bytes) {
+        this.bytesSent.add(bytes);
+    }
+
+    public int getVersion() {
+        return this.version;
+    }
+
+    private Message findStoredMessage(String hash) {
+        // v2 peers may abbreviate hashes to any prefix identifying a single stored message
+        if (this.version >= 2 && hash.length() < 64)
+            return MessageController.findMessage(hash);
+        return MessageController.getMessage(hash);
+    }
+
+    private void loadStoredMessages(String request) {
+        // A method dedicated to handling v2 `LOAD?` requests for several hashes (the tokens parsed
+        // after the first), each answered in turn as it would be individually - only the hashes
+        // found are shown in the activity log once all are answered
+        final String[] hashes = new String[this.parser.count() - 1];
+        for (int i = 0; i < hashes.length; i++)
+            hashes[i] = this.parser.token(i + 1);
+        final StringJoiner found =
+            new StringJoiner("\n").add(String.format("BATCH %d", hashes.length));
+        this.writer.println(String.format("BATCH %d", hashes.length));
+        this.streaming = new Stream() {
+            private int answered = 0;
+
+            @Override
+            public boolean write() {
+                if (this.answered == hashes.length) {
+                    Client.this.complete(request, found.toString());
+                    return false;
+                }
+                final Message target = Client.this.findStoredMessage(hashes[this.answered++]);
+                if (target != null) {
+                    final byte[] loaded = MessageController.getResponse(target);
+                    Client.this.writer.write(loaded, 0, loaded.length);
+                    found.add(String.format("> Message-uid: SHA-256 %s", target.getHash()));
+                } else
+                    Client.this.writer.println("NOT FOUND");
+                return true;
+            }
+        };
+    }
+
+    private boolean isInteractive() {
+        // Whether the response being received answers a request made through the UI
+        final Exchange exchange = this.inFlight.peek();
+        return exchange == null || exchange.interactive;
+    }
+
+    private String storeLoadedMessages() {
+        // Messages loaded in a batch are stored as they would be individually, with a single dialog
+        // shown for the whole batch - only their hashes are returned to be shown in the activity
+        // log, as batches can span thousands of lines
+        if (this.batchLoaded == null)
+            return this.batchSummary.toString();
+        int stored = 0,
+            rejected = 0;
+        for (Message message : this.batchLoaded) {
+            final String hash = message.getHash();
+            if (hash == null || !MessageController.hasMessage(hash)) {
+                if (!message.verifyHash()) {
+                    rejected++;
+                    continue;
+                }
+                MessageController.storeMessage(message);
+                stored++;
+            }
+        }
+        if (stored > 0) {
+            this.showMessageDialog(
+                String.format("%d loaded messages stored successfully", stored),
                 1
             );
         }
+        if (rejected > 0) {
+            this.showMessageDialog(
+                String.format("%d loaded messages rejected - hash mismatch", rejected),
+                2
+            );
+        }
+        this.batchLoaded = null;
+
+        return this.batchSummary.toString();
+    }
+
+    private String storeLoadedMessage() {
+        // Message exchanged once `LOAD?` request is completed, having been decoded line by line as
+        // received - loaded message is stored locally given it doesn't exist, unless requested in
+        // the background in which case storing is left to the requester
+        final String response = String.join("\n", "SUCCESS", this.lines.toString());
+        if (!this.isInteractive())
+            return response;
+
+        final String hash = this.decoder.getHash();
+        if (hash == null || !MessageController.hasMessage(hash)) {
+            // Messages are only stored once their contents are found to match their hashes, as
+            // peers may have altered them
+            final Message message = this.decoder.getMessage();
+            if (!message.verifyHash()) {
+                this.showMessageDialog(
+                    String.format("Message (%.7s) rejected - hash mismatch", hash),
+                    2
+                );
+                return response;
+            }
+            MessageController.storeMessage(message);
+            this.showMessageDialog(String.format("Message (%.7s) stored successfully", hash), 1);
+        }
+
+        return response;
+    }
 
-        return String.join("\n", "SUCCESS", sj.toString());
+    private void complete(String request, String response) {
+        this.complete(request, response, request);
+    }
+
+    private void complete(String request, String response, String received) {
+        // Completed responses are handed to the earliest request still awaiting one, in full even
+        // where only part is shown in the activity log
+        final Kind kind = Kind.of(request);
+        final Exchange exchange = kind.isResponse() ? this.inFlight.poll() : null;
+
+        if (exchange == null || exchange.interactive) {
+            // All but non-zero header `SHOW?` requests are displayed in the activity log once
+            // complete, since their lines are shown as they are received
+            if (this.pending != Pending.SHOW_CONTENTS)
+                this.ui.updateActivityArea(request, this.getName(true));
+            // Successful connection dialog shown in activity log upon protocol acknowledgement
+            if (kind == Kind.ACK)
+                this.ui.updateActivityArea(this.dialog, null);
+            if (response != null)
+                this.ui.updateActivityArea(response, null);
+        }
+        this.pending = Pending.NONE;
+
+        // Answered requests make room for those held back by the window
+        if (exchange != null) {
+            this.release();
+            exchange.response.complete(received);
+        }
+    }
+
+    private void release() {
+        // Writes requests held back for as long as the window allows, unless a response is being
+        // streamed to the connected party
+        if (this.streaming != null)
+            return;
+        while (!this.waiting.isEmpty() && this.inFlight.size() < REQUEST_WINDOW)
+            this.write(this.waiting.remove());
+    }
+
+    private boolean end(String request) {
+        // Communication ends once either party quits or the protocol breaks due to an invalid
+        // request being received, with the corresponding dialog displayed in activity log
+        this.ui.updateActivityArea(request, this.getName(true));
+        if (this.identifier != null) {
+            if (request.equals("QUIT!")) {
+                this.dialog = this.peer ?
+                    String.format("%s (%s) left", this.identifier, this.address) :
+                    String.format("%s left", this.address);
+            } else {
+                this.dialog = this.peer ?
+                    String.format("%s (%s) kicked", this.identifier, this.address) :
+                    String.format("%s kicked", this.address);
+            }
+            this.ui.updateActivityArea(this.dialog, null);
+        }
+        return false;
+    }
+
+    private TokenBucket getScans() {
+        if (SHOW_RATE <= 0)
+            return null;
+        if (SCANS.size() >= MAX_SCAN_BUCKETS)
+            SCANS.values().removeIf(TokenBucket::isFull);
+        return SCANS.computeIfAbsent(
+            this.socket.getInetAddress(),
+            address -> new TokenBucket(SHOW_RATE, SHOW_RATE)
+        );
+    }
+
+    public long acquire(String line) {
+        // Returns the time (in nanoseconds) the line must be held back for before being handled,
+        // or `0` once it is allowed - only lines beginning requests count towards allowances
+        if (this.pending != Pending.NONE || !this.acknowledged)
+            return 0;
+        if (line.startsWith("SHOW?")) {
+            final TokenBucket scans = this.getScans();
+            return scans == null ? 0 : scans.acquire();
+        }
+        if (this.requests == null)
+            return 0;
+        if (line.startsWith("LOAD?"))
+            return this.requests.acquire(Math.max(RequestParser.countTokens(line) - 1, 1));
+        if (line.equals("HELP?") || line.equals("TIME?"))
+            return this.requests.acquire();
+        return 0;
+    }
+
+    public void timeOut() {
+        // The connected party is asked to leave once it stops sending, whether between requests or
+        // part way through a line, before its connection is closed
+        if (this.identifier != null) {
+            this.dialog = this.peer ?
+                String.format("%s (%s) timed out", this.identifier, this.address) :
+                String.format("%s timed out", this.address);
+            this.ui.updateActivityArea(this.dialog, null);
+        }
+        this.lock.lock();
+        try {
+            if (this.writer != null) {
+                this.writer.println("QUIT!");
+                this.writer.flush();
+                this.requestsSent.increment();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public void open(PrintStream writer) {
+        // Protocol acknowledgement MUST occur prior to any communication
+        this.writer = writer;
+        this.dialog = String.format(
+            "%s %s",
+            PROTOCOL_ACK_MESSAGE,
+            this.peer ? this.socket.getLocalAddress() : this.identifier
+        );
+        this.lock.lock();
+        try {
+            writer.println(this.dialog);
+            writer.flush();
+            this.requestsSent.increment();
+        } finally {
+            this.lock.unlock();
+        }
+        this.ui.updateActivityArea(this.dialog, null);
+    }
+
+    public void send(String line) throws IOException {
+        // Requests entered in the UI are written between responses, never in the middle of one
+        if (this.writer == null)
+            throw new IOException(String.format("Connection to %s is not open", this.address));
+        this.lock.lock();
+        try {
+            if (this.streaming != null) {
+                this.postponed.add(line);
+                return;
+            }
+            this.writer.println(line);
+            this.writer.flush();
+            this.requestsSent.increment();
+            if (this.writer.checkError())
+                throw new IOException(String.format("Unable to write to %s", this.address));
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void write(Exchange exchange) {
+        // Requests are queued before being written so they can never miss their response, though
+        // flushing is left to the caller
+        this.inFlight.add(exchange);
+        this.writer.println(exchange.request);
+        this.requestsSent.increment();
+    }
+
+    public CompletableFuture<String> getAcknowledgement() {
+        return this.acknowledgement;
+    }
+
+    public CompletableFuture<String> request(String request) {
+        return this.request(List.of(request), true).get(0);
+    }
+
+    public List<CompletableFuture<String>> request(List<String> requests, boolean interactive) {
+        // Sends requests expecting responses without waiting on one another, written together so
+        // that bulk exchanges cost a single round trip - requests beyond the window are written as
+        // earlier ones are answered, so this never blocks on the connected party
+        final List<CompletableFuture<String>> responses = new ArrayList<>(requests.size());
+        this.lock.lock();
+        try {
+            for (String request : requests) {
+                final Exchange exchange = new Exchange(request, interactive);
+                responses.add(exchange.response);
+                if (this.writer == null) {
+                    exchange.response.completeExceptionally(new IOException(
+                        String.format("Connection to %s is not open", this.address)
+                    ));
+                } else if (this.inFlight.size() < REQUEST_WINDOW
+                    && this.waiting.isEmpty()
+                    && this.streaming == null)
+                    this.write(exchange);
+                else
+                    this.waiting.add(exchange);
+            }
+            if (this.writer != null)
+                this.writer.flush();
+        } finally {
+            this.lock.unlock();
+        }
+
+        return responses;
+    }
+
+    public boolean handle(String line) {
+        // Processes a single line received from the connected party, returning `false` once the
+        // connection is to be closed - output is left to be flushed by the caller
+        this.lock.lock();
+        try {
+            return this.handleLine(line) && this.stream();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public boolean resume() {
+        // Continues the response being streamed once the transport has room for more, returning
+        // `false` once the connection is to be closed - output is left to be flushed by the caller
+        this.lock.lock();
+        try {
+            return this.stream();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public boolean isStreaming() {
+        this.lock.lock();
+        try {
+            return this.streaming != null;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private boolean stream() {
+        // Writes the response being streamed until written in full or the transport falls behind,
+        // after which lines held back meanwhile are written - a response failing part way through
+        // can no longer be completed, so ends communication
+        try {
+            while (this.streaming != null && !this.transport.isBacklogged()) {
+                if (!this.streaming.write())
+                    this.streaming = null;
+            }
+        } catch (IOException e) {
+            this.streaming = null;
+            return this.end(this.request);
+        }
+        if (this.streaming == null) {
+            String line;
+            while ((line = this.postponed.poll()) != null) {
+                this.writer.println(line);
+                this.requestsSent.increment();
+            }
+            this.release();
+        }
+        return true;
+    }
+
+    private boolean handleLine(String line) {
+        switch (this.pending) {
+            case SHOW_CONTENTS:
+                // The number of lines in the content to search for in the message <==>
+                // `contents` of the `SHOW?` request
+                this.lines.add(line);
+                this.ui.updateActivityArea(line, this.getName(true));
+                if (--this.remaining == 0) {
+                    try {
+                        this.complete(
+                            this.request,
+                            this.filterStoredMessages(this.since, this.lines.toString())
+                        );
+                    } catch (Exception e) {
+                        return this.end(this.request);
+                    }
+                }
+                return true;
+            case HELP:
+            case ENTRIES:
+                this.lines.add(line);
+                if (--this.remaining == 0)
+                    this.complete(this.lines.toString(), null);
+                return true;
+            case BATCH:
+                // Each batched response is either `NOT FOUND` or a loaded message, decoded
+                // until as many lines as its `Contents` header gives are received
+                this.lines.add(line);
+                if (this.batchLoading) {
+                    if (!this.decoder.accept(line))
+                        return true;
+                    this.batchLoading = false;
+                    this.batchSummary.add(
+                        String.format("> Message-uid: SHA-256 %s", this.decoder.getHash())
+                    );
+                    if (this.batchLoaded != null)
+                        this.batchLoaded.add(this.decoder.getMessage());
+                } else if (line.equals("SUCCESS")) {
+                    this.decoder.reset();
+                    this.batchLoading = true;
+                    return true;
+                } else if (!line.equals("NOT FOUND"))
+                    return this.end(line);
+
+                if (--this.batched == 0) {
+                    final String batch = this.lines.toString();
+                    this.complete(this.storeLoadedMessages(), null, batch);
+                }
+                return true;
+            case LOADED:
+                // Loaded message decoded as its lines are received, complete once its
+                // headers and as many lines as its `Contents` header gives are received
+                this.lines.add(line);
+                if (this.decoder.accept(line))
+                    this.complete(this.storeLoadedMessage(), null);
+                return true;
+            default:
+                return this.handleRequest(line);
+        }
+    }
+
+    private boolean handleRequest(String request) {
+        this.request = request;
+        final RequestParser meta = this.parser;
+        final Kind kind = meta.parse(request);
+        if (kind.isRequest())
+            this.requestsReceived.increment();
+        if (request.equals("QUIT!"))
+            return this.end(request);
+
+        if (request.startsWith("ACK? PM/") && meta.count() == 3) {
+            final int protocol = meta.parseInt(1, "PM/".length());
+            // Client identifier recorded once peer agrees on protocol
+            if (this.peer && this.identifier == null)
+                this.identifier = meta.token(2);
+            if (!this.acknowledged && protocol >= PROTOCOL_MIN_VERSION) {
+                this.acknowledged = true;
+                this.version = Math.min(protocol, PROTOCOL_VERSION);
+                this.dialog = this.peer ?
+                    String.format("%s (%s) joined", this.identifier, this.address) :
+                    String.format("Connected to %s", this.address);
+                // Output is compressed from here on given both parties support it, with the
+                // announcement itself written uncompressed
+                if (this.version >= 3 && COMPRESSED) {
+                    this.writer.println("DEFLATE!");
+                    this.writer.flush();
+                    this.requestsSent.increment();
+                    this.writer = this.transport.deflateOutput();
+                }
+                this.acknowledgement.complete(meta.token(2));
+            } else
+                return this.end(request);
+        }
+
+        // Requests and responses can now be handled as the protocol is acknowledged between the
+        // client and connected peer
+        if (!this.acknowledged)
+            return this.end(request);
+
+        String response = null;
+        if (request.equals("DEFLATE!")) {
+            // Only v3 peers may announce compression, and only once
+            if (this.version < 3 || this.inflating)
+                return this.end(request);
+            this.inflating = true;
+            this.transport.inflateInput();
+        } else if (request.equals("HELP?")) {
+            response = String.join("\n", this.getHelpMessage());
+            this.writer.println(response);
+        } else if (request.equals("TIME?")) {
+            response = String.format("NOW %d", System.currentTimeMillis() / 1000);
+            this.writer.println(response);
+        } else if (kind == Kind.LOAD) {
+            // Several hashes can only be loaded at once by v2 peers, with the request abbreviated
+            // in the activity log as it can hold thousands of hashes
+            if (meta.count() > 2 && meta.count() <= MAX_BATCH_LOAD + 1 && this.version >= 2) {
+                this.loadStoredMessages(
+                    String.format("LOAD? %s (+%d more)", meta.token(1), meta.count() - 2)
+                );
+                return true;
+            }
+            if (meta.count() != 2)
+                return this.end(request);
+            // The message's response is written straight to the peer as built once for it, leaving
+            // only the hash to be shown in the activity log
+            final Message target = this.findStoredMessage(meta.token(1));
+            if (target != null) {
+                final byte[] loaded = MessageController.getResponse(target);
+                this.writer.write(loaded, 0, loaded.length);
+                response = String.format("SUCCESS\n> Message-uid: SHA-256 %s", target.getHash());
+            } else {
+                response = "NOT FOUND";
+                this.writer.println(response);
+            }
+        } else if (kind == Kind.SHOW) {
+            if (meta.count() != 3)
+                return this.end(request);
+            try {
+                final long since = meta.parseLong(1);
+                final int contents = meta.parseInt(2);
+                // `since` => non-negative + non-future, `headers` => non-negative
+                if (since >= System.currentTimeMillis() / 1000 || since < 0 || contents < 0)
+                    return this.end(request);
+                if (contents != 0) {
+                    // Content lines are awaited before the request can be answered
+                    this.ui.updateActivityArea(request, this.getName(true));
+                    this.since = since;
+                    this.lines = new StringJoiner("\n");
+                    this.remaining = contents;
+                    this.pending = Pending.SHOW_CONTENTS;
+                    return true;
+                }
+                response = this.filterStoredMessages(since, null);
+            } catch (Exception e) {
+                return this.end(request);
+            }
+        } else if (kind == Kind.PROTOCOL) {
+            this.lines = new StringJoiner("\n").add(request);
+            this.remaining = this.getHelpMessage().size() - 1;
+            this.pending = Pending.HELP;
+            return true;
+        } else if (kind == Kind.SUCCESS) {
+            this.lines = new StringJoiner("\n");
+            this.decoder.reset();
+            this.pending = Pending.LOADED;
+            return true;
+        } else if (kind == Kind.BATCH) {
+            this.lines = new StringJoiner("\n").add(request);
+            this.batched = meta.parseInt(1);
+            this.batchLoading = false;
+            this.batchSummary = new StringJoiner("\n").add(request);
+            this.batchLoaded = this.isInteractive() ? new ArrayList<>() : null;
+            if (this.batched > 0) {
+                this.pending = Pending.BATCH;
+                return true;
+            }
+        } else if (kind == Kind.ENTRIES) {
+            final int count = meta.parseInt(1);
+            this.lines = new StringJoiner("\n").add(request);
+            this.remaining = count;
+            if (count > 0) {
+                this.pending = Pending.ENTRIES;
+                return true;
+            }
+        } else {
+            // Miscellaneous communications validated below
+            if (kind != Kind.ACK && kind != Kind.NOW && kind != Kind.NOT && kind != Kind.NONE)
+                return this.end(request);
+        }
+
+        this.complete(request, response);
+        return true;
+    }
+
+    public void close() {
+        // Client connection socket is closed last
+        try {
+            this.socket.close();
+            if (this.peer)
+                this.ui.getController().removePeer(this);
+            else
+                this.ui.getController().removeSession(this);
+            System.out.printf("Client at %s disconnected\n", this.address);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        // Requests left unanswered fail rather than waiting indefinitely
+        final List<Exchange> unanswered = new ArrayList<>();
+        this.lock.lock();
+        try {
+            this.streaming = null;
+            this.postponed.clear();
+            unanswered.addAll(this.inFlight);
+            unanswered.addAll(this.waiting);
+            this.inFlight.clear();
+            this.waiting.clear();
+        } finally {
+            this.lock.unlock();
+        }
+        final IOException closed =
+            new IOException(String.format("Connection to %s closed", this.address));
+        for (Exchange exchange : unanswered)
+            exchange.response.completeExceptionally(closed);
+        this.acknowledgement.completeExceptionally(closed);
+    }
+
+    public void disconnect() {
+        // Closing the socket ends the client's handling, which then closes the connection itself
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void multiplex(PrintStream writer, Transport transport) {
+        // Hands the client to an event loop, which feeds it lines as they arrive
+        this.multiplexed = true;
+        this.transport = transport;
+        this.open(writer);
     }
 
     @Override
     public void run() {
         try {
-            // Client communication streams initialised
-            final BufferedReader reader =
-                new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
-            final PrintWriter writer =
-                new PrintWriter(this.socket.getOutputStream(), true);
-
-            // Protocol acknowledgement MUST occur prior to any communication
-            String dialog = String.format(
-                "%s %s",
-                PROTOCOL_ACK_MESSAGE,
-                this.peer ? this.socket.getLocalAddress() : this.identifier
+            // Client communication streams initialised - output is buffered as bytes between
+            // flushes, so prebuilt responses are written alongside text without being decoded
+            final LineReader reader = new LineReader(
+                new FilterInputStream(this.socket.getInputStream()) {
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        final int n = super.read(b, off, len);
+                        if (n > 0)
+                            Client.this.received(n);
+                        return n;
+                    }
+                },
+                this.socket,
+                this.peer ? IDLE_TIMEOUT * 1000 : 0,
+                READ_TIMEOUT * 1000
             );
-            writer.println(dialog);
-            this.ui.updateActivityArea(dialog, null);
-
-            String request = reader.readLine();
-            boolean acknowledged = false;
-            while (!request.equals("QUIT!")) {
-                boolean isValid = true;        // Determines whether supplied request is valid
-                String[] meta = request.split("\\s+");
-                if (request.startsWith("ACK? PM/") && meta.length == 3) {
-                    final int protocol = Integer.parseInt(meta[1].split("/")[1]);
-                    // Client identifier recorded once peer agrees on protocol
-                    if (this.peer && this.identifier == null)
-                        this.identifier = meta[2];
-                    if (!acknowledged && protocol >= PROTOCOL_MIN_VERSION) {
-                        acknowledged = true;
-                        dialog = this.peer ?
-                            String.format("%s (%s) joined", this.identifier, this.address) :
-                            String.format("Connected to %s", this.address);
-                    } else
-                        break;
+            final OutputStream out = new FilterOutputStream(this.socket.getOutputStream()) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    this.out.write(b, off, len);
+                    Client.this.sent(len);
+                }
+            };
+            this.transport = new Transport() {
+                @Override
+                public void inflateInput() {
+                    reader.inflate();
                 }
 
-                // Requests and responses can now be handled as the protocol is acknowledged
-                // between the client and connected peer
-                String response = null;
-                if (acknowledged) {
-                    if (request.equals("HELP?")) {
-                        response = String.join("\n", PROTOCOL_HELP_MESSAGE);
-                        writer.println(response);
-                    } else if (request.equals("TIME?")) {
-                        response = String.format("NOW %d", System.currentTimeMillis() / 1000);
-                        writer.println(response);
-                    } else if (request.startsWith("LOAD?")) {
-                        meta = request.split("\\s+");
-                        if (meta.length == 2) {
-                            final Message target =
-                                MessageController.loadStoredMessages().getOrDefault(meta[1], null);
-                            if (target != null) {
-                                meta = target.toString().split("\n");
-                                StringJoiner sj = new StringJoiner("\n")
-                                    .add("SUCCESS")
-                                    .add(String.format("> %s", meta[0]));
-                                for (int i = 1; i < meta.length; i++)
-                                    sj.add(String.format("> %s", meta[i]));
-                                response = sj.toString();
-                            } else
-                                response = "NOT FOUND";
-                            writer.println(response);
-                        } else
-                            break;
-                    } else if (request.startsWith("SHOW?")) {
-                        meta = request.split("\\s+");
-                        if (meta.length == 3) {
-                            try {
-                                final long since = Long.parseLong(meta[1]);
-                                final int contents = Integer.parseInt(meta[2]);
-                                // `since` => non-negative + non-future, `headers` => non-negative
-                                if (since < System.currentTimeMillis() / 1000
-                                    && since >= 0
-                                    && contents >= 0) {
-                                    if (contents != 0) {
-                                        this.ui.updateActivityArea(
-                                            request,
-                                            this.peer ? this.identifier : this.address
-                                        );
-                                        // The number of lines in the content to search for in the
-                                        // message <==> `contents` and is compiled by a
-                                        // `StringJoiner` object
-                                        final StringJoiner sj = new StringJoiner("\n");
-                                        for (int i = 0; i < contents; i++) {
-                                            final String line = reader.readLine();
-                                            sj.add(line);
-                                            this.ui.updateActivityArea(
-                                                line,
-                                                this.peer ? this.identifier : this.address
-                                            );
-                                        }
-                                        response = this.filterStoredMessages(since, sj.toString());
-                                    } else
-                                        response = this.filterStoredMessages(since, null);
-                                    writer.println(response);
-                                } else
-                                    break;
-                            } catch (Exception e) {
-                                break;
-                            }
-                        } else
-                            break;
-                    } else if (request.startsWith("PoliteMessaging")) {
-                        final StringJoiner sj = new StringJoiner("\n").add(request);
-                        for (int i = 0; i < PROTOCOL_HELP_MESSAGE.size() - 1; i++)
-                            sj.add(reader.readLine());
-                        request = sj.toString();
-                    } else if (request.startsWith("SUCCESS"))
-                        request = this.storeLoadedMessage(reader);
-                    else if (request.startsWith("ENTRIES")) {
-                        final int count = Integer.parseInt(request.split("\\s+")[1]);
-                        final StringJoiner sj = new StringJoiner("\n").add(request);
-                        for (int i = 0; i < count; i++)
-                            sj.add(reader.readLine());
-                        request = sj.toString();
-                    } else {
-                        // Miscellaneous communications validated below
-                        final String toCheck = request.contains(" ") ?
-                            request.substring(0, request.indexOf(' ')) : request;
-                        if (!PROTOCOL_HELP_MESSAGE.contains(toCheck)
-                            && !VALID_RESPONSES_META.contains(toCheck))
-                            isValid = false;
-                    }
+                @Override
+                public boolean isBacklogged() {
+                    return false;
+                }
 
-                    if (isValid) {
-                        // All but non-zero header `SHOW?` requests are displayed in the activity
-                        // log immediately, since this is handled within the main loop
-                        if (!Pattern.compile(SHOW_REQUEST_HEADER_REGEX).matcher(request).matches())
-                        {
-                            this.ui.updateActivityArea(
-                                request,
-                                this.peer ? this.identifier : this.address
-                            );
-                        }
-                        // Successful connection dialog shown in activity log upon protocol
-                        // acknowledgement
-                        if (meta[0].equals("ACK?"))
-                            this.ui.updateActivityArea(dialog, null);
-                        if (response != null)
-                            this.ui.updateActivityArea(response, null);
-                    } else
-                        break;
-                    request = reader.readLine();
-                } else
+                @Override
+                public PrintStream deflateOutput() {
+                    // Flushing the writer flushes the compressor too, so that every response
+                    // reaches the peer once written in full
+                    return new PrintStream(new BufferedOutputStream(new DeflaterOutputStream(
+                        out,
+                        new Deflater(Deflater.DEFAULT_COMPRESSION, true),
+                        true
+                    )), false, StandardCharsets.UTF_8);
+                }
+            };
+            this.open(
+                new PrintStream(new BufferedOutputStream(out), false, StandardCharsets.UTF_8)
+            );
+
+            // Pipelined requests are handled as they arrive, with their responses written in the
+            // same order - output is flushed before blocking on the next line, as buffered input
+            // may only hold part of it while the connected party awaits the output
+            // Requests beyond the connected party's allowance hold up reading, leaving any further
+            // requests queued in the socket
+            String line;
+            while ((line = reader.readLine()) != null) {
+                for (long wait; (wait = this.acquire(line)) > 0; )
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                final boolean open = this.handle(line);
+                this.writer.flush();
+                if (!open)
                     break;
             }
 
-            // Streams are closed promptly once one party ends communication or the protocol breaks
-            // due to an invalid request being received
-            this.ui.updateActivityArea(request, this.peer ? this.identifier : this.address);
-            if (this.identifier != null) {
-                // Corresponding dialog formulated and displayed in activity log
-                if (request.equals("QUIT!")) {
-                    dialog = this.peer ?
-                        String.format("%s (%s) left", this.identifier, this.address) :
-                        String.format("%s left", this.address);
-                } else {
-                    dialog = this.peer ?
-                        String.format("%s (%s) kicked", this.identifier, this.address) :
-                        String.format("%s kicked", this.address);
-                }
-                this.ui.updateActivityArea(dialog, null);
-            }
+            // Streams are closed promptly once one party ends communication
             reader.close();
-            writer.close();
+            this.writer.close();
+        } catch (SocketTimeoutException e) {
+            this.timeOut();
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
-            // Client connection socket is closed last
-            try {
-                this.socket.close();
-                if (this.peer)
-                    this.ui.getController().removePeer(this);
-                else
-                    this.ui.getController().disconnect();
-                System.out.printf("Client at %s disconnected\n", this.address);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            this.close();
         }
     }
 }
@@ -1,23 +1,58 @@
 
 package dev.m1younis.model;
 
+import dev.m1younis.controller.Hasher;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * A class representing the app's message objects.
+ *
+ * <p>
+ * Messages are held compactly, as millions may be kept in memory at once. Hashes are kept as raw
+ * SHA-256 sums (encoded as hex once first asked for), senders, recipients and topics are shared
+ * with every other message naming them and contents are kept as a single UTF-8 encoding of their
+ * lines, which are only decoded as they are asked for.
+ * </p>
  */
 public class Message {
-    private String hash,
-                   sender,
-                   recipient,
-                   topic,
-                   subject;
+    // Headers shared between messages, bounded so that peers sending endless distinct headers
+    // cannot grow it forever - headers seen once it is full are simply kept as they are
+    private static final int MAX_SHARED_HEADERS = 1 << 16;
+    private static final Map<String, String> SHARED_HEADERS = new ConcurrentHashMap<>();
 
-    private long created;
-    private String[] contents;
+    // The raw sum, or the hash as given where it isn't a valid one (failing verification)
+    private final byte[] sum;
+    private final String invalidHash;
+
+    // The sum encoded upon first use, then kept so that every lookup and the cache key share it
+    private String hash = null;
+
+    private final String sender,
+                         recipient,
+                         topic,
+                         subject;
+
+    private final long created;
+
+    // Every line encoded back to back, with `ends` holding the offset at which each line ends -
+    // `encoded` is written last, so that reading it first also publishes `ends`
+    private volatile byte[] encoded;
+    private int[] ends;
+
+    // Produces the contents upon first use for messages whose contents are stored compressed,
+    // alongside their approximate length in the meantime
+    private Supplier<String[]> loader = null;
+    private int length = 0;
+
+    // The `SUCCESS` response to `LOAD?` requests for the message, encoded as written to peers
+    private volatile byte[] response = null;
 
     public Message(String sender,
                    String recipient,
@@ -27,14 +62,15 @@ public class Message {
         // A more native way of generating the current Unix Epoch time, which can also be done via
         // the `time.Instant` class
         this.created = System.currentTimeMillis() / 1000;
-        this.sender = sender;
-        this.recipient = recipient;
-        this.topic = topic;
+        this.sender = share(sender);
+        this.recipient = share(recipient);
+        this.topic = share(topic);
         this.subject = subject;
-        this.contents = contents;
+        this.encode(contents);
         // The unique SHA-256 sum is generated only once the message body is initialised, with hash
         // results matching those produced at https://emn178.github.io/online-tools/sha256.html
-        this.hash = this.generateHash();
+        this.sum = this.generateHash();
+        this.invalidHash = null;
     }
 
     // The copy constructor defined below is for initialising persistently stored `Message` objects
@@ -45,56 +81,141 @@ public class Message {
                    String subject,
                    long created,
                    String[] contents) {
-        this.hash = hash;
-        this.sender = sender;
-        this.recipient = recipient;
-        this.topic = topic;
+        this.sum = Hasher.fromHex(hash);
+        this.invalidHash = this.sum == null ? hash : null;
+        this.sender = share(sender);
+        this.recipient = share(recipient);
+        this.topic = share(topic);
         this.subject = subject;
         this.created = created;
-        this.contents = contents;
+        if (contents != null)
+            this.encode(contents);
     }
 
-    private String build(boolean append) {
+    // Initialises persistently stored `Message` objects whose contents are only loaded once needed
+    public Message(String hash,
+                   String sender,
+                   String recipient,
+                   String topic,
+                   String subject,
+                   long created,
+                   int length,
+                   Supplier<String[]> contents) {
+        this(hash, sender, recipient, topic, subject, created, (String[]) null);
+        this.length = length;
+        this.loader = contents;
+    }
+
+    private static String share(String header) {
+        if (header == null)
+            return null;
+        final String shared = SHARED_HEADERS.get(header);
+        if (shared != null)
+            return shared;
+        if (SHARED_HEADERS.size() >= MAX_SHARED_HEADERS)
+            return header;
+        final String previous = SHARED_HEADERS.putIfAbsent(header, header);
+        return previous == null ? header : previous;
+    }
+
+    private void encode(String[] contents) {
+        final byte[][] lines = new byte[contents.length][];
+        final int[] ends = new int[contents.length];
+        int end = 0;
+        for (int i = 0; i < contents.length; i++) {
+            lines[i] = contents[i].getBytes(StandardCharsets.UTF_8);
+            end += lines[i].length;
+            ends[i] = end;
+        }
+
+        final byte[] encoded = new byte[end];
+        for (int i = 0; i < contents.length; i++)
+            System.arraycopy(lines[i], 0, encoded, ends[i] - lines[i].length, lines[i].length);
+        this.ends = ends;
+        this.encoded = encoded;
+    }
+
+    private byte[] getEncoded() {
+        byte[] encoded = this.encoded;
+        if (encoded == null) {
+            synchronized (this) {
+                encoded = this.encoded;
+                if (encoded == null) {
+                    this.encode(this.loader.get());
+                    this.loader = null;
+                    encoded = this.encoded;
+                }
+            }
+        }
+        return encoded;
+    }
+
+    private StringBuilder buildHeaders(int capacity, int lines) {
         // A `StringBuilder` object is utilised here to position mandatory and optional message
-        // headers accordingly
-        final StringBuilder sb = new StringBuilder(String.format("Created: %d\n", this.created))
-            .append(String.format("From: %s\n", this.sender));
+        // headers accordingly, appending directly rather than formatting as bodies are built
+        // whenever a message is hashed
+        final StringBuilder sb = new StringBuilder(64 + capacity)
+            .append("Created: ").append(this.created).append('\n')
+            .append("From: ").append(this.sender).append('\n');
 
         // Optional headers are dealt with prior to the message contents
         if (this.recipient != null)
-            sb.append(String.format("To: %s\n", this.recipient));
+            sb.append("To: ").append(this.recipient).append('\n');
         if (this.topic != null)
-            sb.append(String.format("Topic: %s\n", this.topic));
+            sb.append("Topic: ").append(this.topic).append('\n');
         if (this.subject != null)
-            sb.append(String.format("Subject: %s\n", this.subject));
+            sb.append("Subject: ").append(this.subject).append('\n');
+        return sb.append("Contents: ").append(lines).append('\n');
+    }
 
+    private String build(boolean append) {
         // Contents appended last
-        sb.append(String.format("Contents: %d\n", this.contents.length))
-            .append(String.join("\n", this.contents));
+        final String[] contents = this.getContents();
+        final StringBuilder sb = this.buildHeaders(this.getContentsLength(), contents.length);
+        for (int i = 0; i < contents.length; i++) {
+            if (i > 0)
+                sb.append('\n');
+            sb.append(contents[i]);
+        }
 
         // `append` determines whether a trailing line is added
         return append ? sb.append("\n").toString() : sb.toString();
     }
 
-    private String generateHash() {
-        try {
-            // SHA-256 is the chosen hashing function - each byte in the incomplete message body
-            // (formed by invoking the `build` method) is hashed, converted to its hex equivalent
-            // then stored within a `StringBuilder` object, resulting in the corresponding sum
-            final StringBuilder sb = new StringBuilder();
-            final MessageDigest md = MessageDigest.getInstance("SHA-256");
-            for (byte b : md.digest(this.build(true).getBytes(StandardCharsets.UTF_8))) 
-                sb.append(String.format("%02x", b));
-
-            return sb.toString();
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            return null;
+    private byte[] generateHash() {
+        // SHA-256 is the chosen hashing function - each byte in the incomplete message body
+        // (as formed by the `build` method) is hashed, resulting in the corresponding sum, with
+        // the contents digested straight from their encoding rather than decoded and encoded again
+        final byte[] encoded = this.getEncoded();
+        final int[] ends = this.ends;
+        final MessageDigest digest = Hasher.getDigest();
+        digest.update(
+            this.buildHeaders(0, ends.length).toString().getBytes(StandardCharsets.UTF_8)
+        );
+        for (int i = 0, start = 0; i < ends.length; start = ends[i++]) {
+            if (i > 0)
+                digest.update((byte) '\n');
+            digest.update(encoded, start, ends[i] - start);
         }
+        digest.update((byte) '\n');
+        return digest.digest();
+    }
+
+    public boolean verifyHash() {
+        // Checks the message's sum against its body, as received messages may have been altered
+        return this.sum != null && Arrays.equals(this.sum, this.generateHash());
     }
 
     public String getHash() {
-        return this.hash;
+        // Encoded at most once per thread that races to it, as every encoding is equal
+        if (this.sum == null)
+            return this.invalidHash;
+        String hash = this.hash;
+        if (hash == null) {
+            hash = Hasher.toHex(this.sum);
+            this.hash = hash;
+        }
+        return hash;
     }
 
     public long getCreated() {
@@ -118,13 +239,74 @@ public class Message {
     }
 
     public String[] getContents() {
-        return this.contents;
+        // Decoded afresh upon each call, so callers are free to modify the lines returned - only
+        // needed where the lines are wanted as strings, as hashing reads the encoding directly
+        final byte[] encoded = this.getEncoded();
+        final int[] ends = this.ends;
+        final String[] contents = new String[ends.length];
+        for (int i = 0, start = 0; i < ends.length; start = ends[i++])
+            contents[i] = new String(encoded, start, ends[i] - start, StandardCharsets.UTF_8);
+        return contents;
+    }
+
+    public boolean isLoaded() {
+        return this.encoded != null;
+    }
+
+    public int getContentsLength() {
+        // Approximates the number of characters in the contents without loading or decoding them
+        final byte[] encoded = this.encoded;
+        if (encoded == null)
+            return this.length;
+        return encoded.length + Math.max(this.ends.length - 1, 0);
+    }
+
+    public int getContentsSize() {
+        // Bytes held for the loaded contents, including line offsets
+        final byte[] encoded = this.encoded;
+        return encoded == null ? 0 : encoded.length + 4 * this.ends.length;
+    }
+
+    public void forEachLine(Consumer<String> action) {
+        // Supplies the lines making up `toString` one at a time, allowing the message body to be
+        // written out without first being assembled in full
+        action.accept("Message-uid: SHA-256 " + this.getHash());
+        action.accept("Created: " + this.created);
+        action.accept("From: " + this.sender);
+        if (this.recipient != null)
+            action.accept("To: " + this.recipient);
+        if (this.topic != null)
+            action.accept("Topic: " + this.topic);
+        if (this.subject != null)
+            action.accept("Subject: " + this.subject);
+        final String[] contents = this.getContents();
+        action.accept("Contents: " + contents.length);
+        for (String line : contents)
+            action.accept(line);
+    }
+
+    public byte[] getResponse() {
+        // Built upon first use then kept with the message, so messages loaded repeatedly while
+        // cached are written to peers as they are without being formatted again
+        byte[] response = this.response;
+        if (response == null) {
+            final StringBuilder sb = new StringBuilder("SUCCESS\n");
+            this.forEachLine(line -> sb.append("> ").append(line).append('\n'));
+            response = sb.toString().getBytes(StandardCharsets.UTF_8);
+            this.response = response;
+        }
+        return response;
+    }
+
+    public int getResponseLength() {
+        final byte[] response = this.response;
+        return response == null ? 0 : response.length;
     }
 
     @Override
     public String toString() {
         return new StringJoiner("\n")
-            .add(String.format("Message-uid: SHA-256 %s", this.hash))
+            .add(String.format("Message-uid: SHA-256 %s", this.getHash()))
             .add(this.build(false))
             .toString();
     }
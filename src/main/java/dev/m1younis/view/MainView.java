@@ -275,6 +275,10 @@ public class MainView extends BaseView {
             DISCONNECT_BUTTON.setEnabled(!enable);
     }
 
+    public void setDisconnectButtonState(boolean enable) {
+        DISCONNECT_BUTTON.setEnabled(enable);
+    }
+
     public void setActivityPanelState(boolean enable) {
         REQUEST_FIELD.setEditable(enable);
         CLEAR_REQUEST_BUTTON.setEnabled(enable);
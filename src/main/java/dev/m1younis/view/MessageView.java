@@ -33,6 +33,9 @@ public class MessageView extends BaseView {
 
     private static final JButton CLOSE_BUTTON = new JButton("Close");
 
+    // Held by each view, as its listener finds messages through the view it belongs to
+    private final JButton findButton = new JButton("Find");
+
     private MainView main;
 
     private Map<String, Message> messages;
@@ -43,8 +46,37 @@ public class MessageView extends BaseView {
         this.main = main;
         this.messages = MessageController.loadStoredMessages();
 
+        this.addButton(this.findButton, true, 607, 281, 100, 30);
         this.addButton(CLOSE_BUTTON, true, 724, 281, 100, 30);
 
+        // Messages can be found by their hash or any unambiguous prefix of it, such as the short
+        // hashes shown in dialogs
+        this.findButton.addActionListener(l -> {
+            final String prefix = JOptionPane.showInputDialog(
+                this,
+                "Enter a message hash (or its first few characters)",
+                "Find Message",
+                JOptionPane.QUESTION_MESSAGE
+            );
+            if (prefix == null || prefix.isBlank())
+                return;
+            final String[] found = MessageController.findHashes(prefix.strip().toLowerCase(), 2);
+            final Message message =
+                found.length == 1 ? MessageController.getMessage(found[0]) : null;
+            if (message != null)
+                this.showMessageDetails(message);
+            else {
+                JOptionPane.showInternalMessageDialog(
+                    null,
+                    found.length > 1 ?
+                        "Several stored messages match the given hash" :
+                        "No stored message matches the given hash",
+                    null,
+                    JOptionPane.WARNING_MESSAGE
+                );
+            }
+        });
+
         CLOSE_BUTTON.addActionListener(l -> {
             this.main.setVisible(true);
             this.dispose();
@@ -73,7 +105,7 @@ public class MessageView extends BaseView {
         table.getColumnModel().getColumn(1).setMinWidth(85);
         table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
 
-        // ENTER key bind cleared; see L103
+        // ENTER key bind cleared; see L133
         table.getInputMap(JTable.WHEN_ANCESTOR_OF_FOCUSED_COMPONENT).put(
             KeyStroke.getKeyStroke(KeyEvent.VK_ENTER, 0), "none"
         );